@@ -0,0 +1,98 @@
+package Graphics;
+
+import java.util.Arrays;
+
+/**
+ * Picks the render scale for the next frame from the time the last ones took.
+ * Scales run from maxScale down to minScale in STEP increments. A level is
+ * dropped after two frames over the target, and raised again only once the
+ * larger level is predicted to fit for SETTLE_FRAMES frames in a row.
+ */
+public class DynamicResolution {
+
+    public static boolean enabled = false;
+    public static double targetMillis = 8;
+    public static double minScale = 0.5;
+    public static double maxScale = 1.0;
+
+    public static final double STEP = 0.125;
+    public static final int HISTORY = 120;
+    private static final int SLOW_FRAMES = 2;
+    private static final int SETTLE_FRAMES = 30;
+
+    public final double[] scales;
+    private int level;
+    private int slowFrames;
+    private int fastFrames;
+
+    private final float[] history = new float[HISTORY];
+    private int historyPos;
+
+    public DynamicResolution() {
+        double top = Math.min(1, maxScale);
+        double bottom = Math.max(STEP, Math.min(top, minScale));
+        int count = (int) Math.floor((top - bottom) / STEP + 1e-9) + 1;
+
+        scales = new double[count];
+        for (int i = 0; i < count; i++) {
+            scales[i] = top - i * STEP;
+        }
+    }
+
+    public void reset() {
+        level = 0;
+        slowFrames = 0;
+        fastFrames = 0;
+        Arrays.fill(history, 0);
+        historyPos = 0;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public double getScale() {
+        return scales[level];
+    }
+
+    /** Frame time in ms, i frames ago (0 is the latest). */
+    public float getFrameMillis(int i) {
+        return history[(historyPos - 1 - i + 2 * HISTORY) % HISTORY];
+    }
+
+    /** Records how long a frame took and returns the level for the next one. */
+    public int update(long nanos) {
+        double millis = nanos / 1e6;
+        history[historyPos] = (float) millis;
+        historyPos = (historyPos + 1) % HISTORY;
+
+        if (!enabled) {
+            level = 0;
+            return level;
+        }
+
+        if (millis > targetMillis) {
+            fastFrames = 0;
+            if (++slowFrames >= SLOW_FRAMES && level < scales.length - 1) {
+                level++;
+                slowFrames = 0;
+            }
+            return level;
+        }
+        slowFrames = 0;
+
+        if (level > 0) {
+            // Cost grows with the pixel count, i.e. with the square of the scale.
+            double ratio = scales[level - 1] / scales[level];
+            if (millis * ratio * ratio < targetMillis * 0.9) {
+                if (++fastFrames >= SETTLE_FRAMES) {
+                    level--;
+                    fastFrames = 0;
+                }
+            } else {
+                fastFrames = 0;
+            }
+        }
+        return level;
+    }
+}
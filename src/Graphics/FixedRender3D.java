@@ -0,0 +1,195 @@
+package Graphics;
+
+/**
+ * Render3D variant that keeps depth in a 16.16 fixed-point int buffer and steps
+ * texture coordinates with integer adds in the floor, wall and sprite passes.
+ * Ray casting itself still runs in double precision.
+ */
+public class FixedRender3D extends Render3D {
+
+    private static final int FIX_SHIFT = 16;
+    private static final int FIX_ONE = 1 << FIX_SHIFT;
+
+    public final int[] depth;
+
+    public FixedRender3D(int width, int height) {
+        this(width, height, new int[width * height]);
+    }
+
+    public FixedRender3D(int width, int height, int[] target) {
+        super(width, height, target, false);
+        depth = new int[width * height];
+    }
+
+    private static int toFixed(double value) {
+        if (value >= Integer.MAX_VALUE / (double) FIX_ONE) return Integer.MAX_VALUE;
+        return (int) (value * FIX_ONE);
+    }
+
+    @Override
+    protected void floorColumns() {
+        floorRows();
+    }
+
+    @Override
+    protected void floorRows() {
+        double floorPosition = 8;
+        double sin = Math.sin(rotation);
+        double cos = Math.cos(rotation);
+        double horizon = height / 2.0 + pitchOffset;
+        int[] texels = atlas.pixels;
+        int writes = 0;
+
+        for (int y = 0; y < height; y++) {
+            double ceiling = (y - horizon) / height;
+
+            double z = (floorPosition + yPos) / ceiling;
+            if (ceiling < 0) {
+                z = (8.0 - yPos) / -ceiling;
+            }
+
+            int row = y * width;
+            int rowDepth = toFixed(z);
+            boolean dark = z > renderDistance;
+            int shade = shadeFor(z);
+            int level = floorLevel(z);
+            int shift = FIX_SHIFT + level;
+            int floor = atlas.mip(Texture.FLOOR, level);
+            int floorBase = atlas.offset(floor);
+            int floorSize = atlas.width(floor);
+            int floorMask = atlas.mask(floor);
+
+            // Texture coordinates wrap with the mask, so int overflow in the
+            // 16.16 accumulators is harmless for power-of-two floor textures.
+            int u = (int) (long) ((xPos + (sin - cos) * z) * FIX_ONE);
+            int v = (int) (long) ((zPos + (cos + sin) * z) * FIX_ONE);
+            int du = (int) (long) (2 * cos * z / width * FIX_ONE);
+            int dv = (int) (long) (-2 * sin * z / width * FIX_ONE);
+
+            for (int x = 0; x < width; x++) {
+                if (y < wallTop[x] || y >= wallBottom[x]) {
+                    depth[row + x] = rowDepth;
+                    pixels[row + x] = dark ? 0 : shade(texels[floorBase + ((u >> shift) & floorMask) + ((v >> shift) & floorMask) * floorSize], shade);
+                    writes++;
+                }
+                u += du;
+                v += dv;
+            }
+        }
+        floorWrites = writes;
+    }
+
+    @Override
+    protected void drawWallStrip(int x, int texture, int texX, int lineHeight, int drawStart, int drawEnd, double dist) {
+        int texWidth = atlas.width(texture);
+        int texHeight = atlas.height(texture);
+        int[] texPixels = atlas.pixels;
+        int texBase = atlas.offset(texture) + texX;
+        int z = toFixed(dist);
+
+        int step = (texHeight << FIX_SHIFT) / lineHeight;
+        long d = (long) (drawStart - pitch - jumpOffset) * 256 - height * 128 + lineHeight * 128;
+        int texPos = (int) ((d * texHeight << 8) / lineHeight);
+        int last = texHeight - 1;
+        int shade = shadeFor(dist);
+
+        for (int y = drawStart; y < drawEnd; y++) {
+            int texY = texPos >> FIX_SHIFT;
+            if (texY < 0) texY = 0;
+            if (texY > last) texY = last;
+
+            pixels[x + y * width] = shade(texPixels[texBase + texY * texWidth], shade);
+            depth[x + y * width] = z;
+            texPos += step;
+        }
+    }
+
+    @Override
+    protected int drawEnemyStrip(int x, int texture, int texX, int eStart, int cubeHeight, int from, int to, double dist) {
+        int[] texPixels = atlas.pixels;
+        int texBase = atlas.offset(texture) + texX;
+        int texWidth = atlas.width(texture);
+        int z = toFixed(dist);
+        int step = Math.max(1, (atlas.height(texture) << FIX_SHIFT) / cubeHeight);
+        int shade = shadeFor(dist);
+        int writes = 0;
+
+        // Screen row y shows texel row ((y - eStart) * step) >> FIX_SHIFT.
+        SpriteSpans spans = atlas.spans(texture);
+        int[] runs = spans.columnRuns;
+        for (int run = spans.columnIndex[texX]; run < spans.columnIndex[texX + 1]; run += 2) {
+            int start = Math.max(from, eStart + firstRow(runs[run], FIX_ONE, step));
+            int end = Math.min(to, eStart + firstRow(runs[run + 1], FIX_ONE, step));
+            int texPos = (start - eStart) * step;
+
+            for (int y = start; y < end; y++) {
+                int texY = texPos >> FIX_SHIFT;
+                texPos += step;
+                pixels[x + y * width] = shade(texPixels[texBase + texY * texWidth], shade);
+                depth[x + y * width] = z;
+            }
+            writes += Math.max(0, end - start);
+        }
+        return writes;
+    }
+
+    @Override
+    protected int drawItemStrip(int x, int texture, int texX, int iHeight, int iStart, int iEnd, int from, int to, int itemSide, double dist) {
+        int[] texPixels = atlas.pixels;
+        int texBase = atlas.offset(texture) + texX;
+        int texWidth = atlas.width(texture);
+        int texHeight = atlas.height(texture);
+        int z = toFixed(dist);
+        from = Math.max(from, Math.max(0, iStart));
+        to = Math.min(to, Math.min(height, iEnd));
+
+        int step = (texHeight << FIX_SHIFT) / iHeight;
+        long d = (long) (from - pitch - jumpOffset) * 256 - height * 128 + iHeight * 128;
+        int texPos = (int) ((d * texHeight << 8) / iHeight);
+        int shade = shadeFor(dist);
+        int writes = 0;
+
+        for (int y = from; y < to; y++) {
+            int texY = texPos >> FIX_SHIFT;
+            if (texY < 0) texY = 0;
+            if (texY >= texHeight) texY = texHeight - 1;
+            texPos += step;
+
+            int col = texPixels[texBase + texY * texWidth];
+            if (y <= iStart + 1) {
+                col = 0xFFE6B800;
+            } else if (itemSide == 1) {
+                col = (col & 0xFEFEFE) >> 1;
+            }
+
+            pixels[x + y * width] = shade(col, shade);
+            depth[x + y * width] = z;
+            writes++;
+        }
+        return writes;
+    }
+
+    @Override
+    public void renderDistanceLimiter() {
+        if (shadeOnWrite || frameReused) return;
+
+        int limit = (int) (renderDistance * FIX_ONE);
+
+        for (int i = 0; i < width * height; i++) {
+            int color = pixels[i];
+            int z = depth[i];
+            int brightness = z <= 0 ? 255 : limit / z;
+            if (brightness > 255) brightness = 255;
+
+            int r = (color >> 16) & 0xff;
+            int g = (color >> 8) & 0xff;
+            int b = (color) & 0xff;
+
+            r = r * brightness / 255;
+            g = g * brightness / 255;
+            b = b * brightness / 255;
+
+            pixels[i] = r << 16 | g << 8 | b;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package Graphics;
+
+import java.awt.Font;
+
+/**
+ * The in-game overlay, composited straight into the framebuffer: labels are
+ * rasterized once, and only the numbers are put together each frame.
+ */
+public class Hud {
+
+    private static final Font LABEL_FONT = new Font("Verdana", Font.BOLD, 20);
+    private static final Font FPS_FONT = new Font("Verdana", Font.ITALIC, 20);
+    private static final int CROSSHAIR = 0xFF0000;
+    private static final int CROSSHAIR_SIZE = 10;
+    private static final Font GRAPH_FONT = new Font("Verdana", Font.PLAIN, 14);
+    private static final int GRAPH_TARGET = 0x808080;
+    private static final int GRAPH_BAR = 0x00FF00;
+
+    private final HudFont white = new HudFont(LABEL_FONT, 0xFFFFFF);
+    private final HudFont green = new HudFont(LABEL_FONT, 0x00FF00);
+    private final HudFont yellow = new HudFont(FPS_FONT, 0xFFFF00);
+
+    private final Render collect = white.label("Зібрати: ");
+    private final Render of = white.label(" / ");
+    private final Render score = white.label("Рахунок: ");
+    private final Render exitOpen = green.label("Вихід відкрито! (");
+    private final Render slash = green.label("/");
+    private final Render close = green.label(")");
+    private final Render fps = yellow.label(" FPS");
+
+    private final HudFont graph = new HudFont(GRAPH_FONT, 0xFFFF00);
+    private final Render res = graph.label("res ");
+    private final Render by = graph.label("x");
+    private final Render open = graph.label(" (");
+    private final Render percent = graph.label("%)");
+
+    private int lastCollected = -1, lastRequired, lastScore, lastFps;
+
+    /**
+     * Whether any number differs from the last draw. A frame the renderer
+     * reuses still shows the old digits, so it has to be redrawn then.
+     */
+    public boolean changed(int collected, int required, int totalScore, int framesPerSecond) {
+        return collected != lastCollected || required != lastRequired
+                || totalScore != lastScore || framesPerSecond != lastFps;
+    }
+
+    public void draw(Render target, int collected, int required, int totalScore, int framesPerSecond) {
+        lastCollected = collected;
+        lastRequired = required;
+        lastScore = totalScore;
+        lastFps = framesPerSecond;
+
+        int x = target.width - 350;
+        if (collected >= required) {
+            int end = green.drawLabel(target, exitOpen, x, 40);
+            end = green.drawNumber(target, collected, end, 40);
+            end = green.drawLabel(target, slash, end, 40);
+            end = green.drawNumber(target, required, end, 40);
+            green.drawLabel(target, close, end, 40);
+        } else {
+            int end = white.drawLabel(target, collect, x, 40);
+            end = white.drawNumber(target, collected, end, 40);
+            end = white.drawLabel(target, of, end, 40);
+            white.drawNumber(target, required, end, 40);
+        }
+        white.drawNumber(target, totalScore, white.drawLabel(target, score, x, 70), 70);
+
+        drawCrosshair(target);
+
+        yellow.drawLabel(target, fps, yellow.drawNumber(target, framesPerSecond, 15, 40), 40);
+    }
+
+    /**
+     * The dynamic resolution overlay: current size and scale, and a bar per
+     * recent frame against a line at the target time. It changes every
+     * frame, so the screen has to be invalidated each frame it is shown.
+     */
+    public void drawResolutionGraph(Screen screen) {
+        DynamicResolution resolution = screen.resolution;
+        int left = 15;
+        int bottom = screen.height - 15;
+        int pixelsPerMs = 4;
+        int targetY = bottom - (int) (DynamicResolution.targetMillis * pixelsPerMs);
+
+        int y = targetY - 30;
+        int end = graph.drawLabel(screen, res, left, y);
+        end = graph.drawNumber(screen, screen.getRenderWidth(), end, y);
+        end = graph.drawLabel(screen, by, end, y);
+        end = graph.drawNumber(screen, screen.getRenderHeight(), end, y);
+        end = graph.drawLabel(screen, open, end, y);
+        end = graph.drawNumber(screen, (int) Math.round(resolution.getScale() * 100), end, y);
+        graph.drawLabel(screen, percent, end, y);
+
+        fill(screen, left, targetY, left + DynamicResolution.HISTORY * 2 + 1, targetY + 1, GRAPH_TARGET);
+        for (int i = 0; i < DynamicResolution.HISTORY; i++) {
+            float millis = resolution.getFrameMillis(DynamicResolution.HISTORY - 1 - i);
+            int x = left + i * 2;
+            int top = Math.max(targetY - 20, bottom - (int) (millis * pixelsPerMs));
+            fill(screen, x, top, x + 1, bottom + 1, GRAPH_BAR);
+        }
+    }
+
+    /** Fills [x0, x1) x [y0, y1), clipped to the target. */
+    private static void fill(Render target, int x0, int y0, int x1, int y1, int color) {
+        x0 = Math.max(0, x0);
+        y0 = Math.max(0, y0);
+        x1 = Math.min(target.width, x1);
+        y1 = Math.min(target.height, y1);
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                target.pixels[x + y * target.width] = color;
+            }
+        }
+    }
+
+    private void drawCrosshair(Render target) {
+        int cx = target.width / 2;
+        int cy = target.height / 2;
+        for (int d = -CROSSHAIR_SIZE; d <= CROSSHAIR_SIZE; d++) {
+            if (cx + d >= 0 && cx + d < target.width) target.pixels[cx + d + cy * target.width] = CROSSHAIR;
+            if (cy + d >= 0 && cy + d < target.height) target.pixels[cx + (cy + d) * target.width] = CROSSHAIR;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package Graphics;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * A font in one colour, rasterized once with Java2D: the digits as glyph
+ * sprites for numbers that change, and whole strings as label sprites for
+ * text that does not. Both are drawn with Render.draw, so they copy opaque
+ * runs and allocate nothing. Text is not antialiased, which keeps drawing
+ * the same text twice over the same pixels harmless.
+ */
+public class HudFont {
+
+    private final Font font;
+    private final int color;
+    private final Render[] digits = new Render[10];
+    private final int ascent;
+
+    public HudFont(Font font, int color) {
+        this.font = font;
+        this.color = color & 0xFFFFFF;
+        this.ascent = metrics().getAscent();
+        for (int d = 0; d < 10; d++) {
+            digits[d] = label(String.valueOf((char) ('0' + d)));
+        }
+    }
+
+    private FontMetrics metrics() {
+        Graphics2D g = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+        FontMetrics metrics = g.getFontMetrics(font);
+        g.dispose();
+        return metrics;
+    }
+
+    /** Rasterizes text once; draw it with drawLabel. Its width is the text's advance. */
+    public Render label(String text) {
+        FontMetrics metrics = metrics();
+        int width = Math.max(1, metrics.stringWidth(text));
+        int height = Math.max(1, metrics.getHeight());
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+        g.setFont(font);
+        g.setColor(new Color(color));
+        g.drawString(text, 0, ascent);
+        g.dispose();
+
+        Render result = new Render(width, height);
+        image.getRGB(0, 0, width, height, result.pixels, 0, width);
+        for (int i = 0; i < result.pixels.length; i++) {
+            result.pixels[i] = result.pixels[i] != 0 ? color : 0;
+        }
+        result.spans();
+        return result;
+    }
+
+    /** Draws a label with its baseline at y and returns the x after it. */
+    public int drawLabel(Render target, Render label, int x, int y) {
+        target.draw(label, x, y - ascent);
+        return x + label.width;
+    }
+
+    /** Draws a non-negative number with its baseline at y and returns the x after it. */
+    public int drawNumber(Render target, int value, int x, int y) {
+        int divisor = 1;
+        while (value / divisor >= 10) divisor *= 10;
+        for (; divisor > 0; divisor /= 10) {
+            x = drawLabel(target, digits[value / divisor % 10], x, y);
+        }
+        return x;
+    }
+}
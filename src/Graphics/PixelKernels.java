@@ -0,0 +1,87 @@
+package Graphics;
+
+/**
+ * Bulk pixel loops: run shading for the floor and column-major strips, row
+ * widening for the upscaler, and the separate distance pass used when
+ * fusedShading is off. This class is the scalar version; VectorKernels
+ * (built from vector/, see there) overrides the same loops with
+ * jdk.incubator.vector and is picked up at startup when both the class and
+ * the module are present.
+ */
+public class PixelKernels {
+
+    public static final PixelKernels SCALAR = new PixelKernels();
+    /** Null when the Vector API backend is not available. */
+    public static final PixelKernels VECTOR = loadVector();
+
+    public static PixelKernels current = VECTOR != null ? VECTOR : SCALAR;
+
+    private static PixelKernels loadVector() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return null;
+        try {
+            return (PixelKernels) Class.forName("Graphics.VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    public String name() {
+        return "scalar";
+    }
+
+    /** Shades pixels[from..to) by one brightness (0..255), exactly as Render3D.shade does each pixel. */
+    public void shade(int[] pixels, int from, int to, int brightness) {
+        for (int i = from; i < to; i++) {
+            pixels[i] = Render3D.shade(pixels[i], brightness);
+        }
+    }
+
+    /** Writes each of count pixels from in[from] factor times over, starting at out[to]. */
+    public void widen(int[] in, int from, int[] out, int to, int count, int factor) {
+        int x = to;
+        if (factor == 2) {
+            for (int i = 0; i < count; i++) {
+                int c = in[from + i];
+                out[x] = c;
+                out[x + 1] = c;
+                x += 2;
+            }
+        } else if (factor == 3) {
+            for (int i = 0; i < count; i++) {
+                int c = in[from + i];
+                out[x] = c;
+                out[x + 1] = c;
+                out[x + 2] = c;
+                x += 3;
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                int c = in[from + i];
+                for (int k = 0; k < factor; k++) {
+                    out[x++] = c;
+                }
+            }
+        }
+    }
+
+    /** Darkens each pixel by renderDistance / depth, clamped to 0..255, and drops alpha. */
+    public void limit(int[] pixels, double[] depth, int start, int end, double renderDistance) {
+        for (int i = start; i < end; i++) {
+            int color = pixels[i];
+            int brightness = (int) (renderDistance / (depth[i]));
+
+            if (brightness < 0) brightness = 0;
+            if (brightness > 255) brightness = 255;
+
+            int r = (color >> 16) & 0xff;
+            int g = (color >> 8) & 0xff;
+            int b = (color) & 0xff;
+
+            r = r * brightness / 255;
+            g = g * brightness / 255;
+            b = b * brightness / 255;
+
+            pixels[i] = r << 16 | g << 8 | b;
+        }
+    }
+}
@@ -1,35 +1,72 @@
 package Graphics;
 
-import Index.Display;
-
 public class Render {
 	public final int width;
 	public final int height;
 	public final int[] pixels;
+	private volatile SpriteSpans spans;
 
 	public Render(int width, int height) {
+		this(width, height, new int[width * height]);
+	}
+
+	/** Draws straight into an existing buffer, e.g. the raster of a BufferedImage. */
+	public Render(int width, int height, int[] pixels) {
 		this.width = width;
 		this.height = height;
-		pixels = new int[width * height];
+		this.pixels = pixels;
 	}
 	
-	public void draw(Render render, int xOffset, int yOffset) {
-		for (int y = 0; y < render.height; y++) {
-			int yPix = y + yOffset;
-			if (yPix < 0 || yPix >= Display.HEIGHT) {
-				continue;
-			}
-			
-			for (int x = 0; x < render.width; x++) {
-				int xPix = x + xOffset;
-				
-			if (xPix < 0 || xPix >= Display.WIDTH) {
-				continue;
+	/** Runs of pixels that draw() copies (positive ones), built on first use; the image must not change after that. */
+	public SpriteSpans spans() {
+		SpriteSpans result = spans;
+		if (result == null) {
+			result = new SpriteSpans(pixels, 0, width, height, color -> color > 0);
+			spans = result;
+		}
+		return result;
+	}
+
+	private static final int TRANSPOSE_BLOCK = 32;
+
+	/**
+	 * Writes the transpose of a row-major width x height image into dst, in
+	 * square blocks so both sides stay within a few cache lines per block.
+	 */
+	public static void transpose(int[] src, int width, int height, int[] dst) {
+		for (int by = 0; by < height; by += TRANSPOSE_BLOCK) {
+			int yEnd = Math.min(height, by + TRANSPOSE_BLOCK);
+			for (int bx = 0; bx < width; bx += TRANSPOSE_BLOCK) {
+				int xEnd = Math.min(width, bx + TRANSPOSE_BLOCK);
+				for (int x = bx; x < xEnd; x++) {
+					int out = x * height;
+					for (int y = by; y < yEnd; y++) {
+						dst[out + y] = src[x + y * width];
+					}
+				}
 			}
-			
-				int alpha = render.pixels[x + y * render.width];
-				if (alpha > 0) {
-					pixels[xPix + yPix * width] = alpha;
+		}
+	}
+
+	public void draw(Render render, int xOffset, int yOffset) {
+		int x0 = Math.max(0, -xOffset);
+		int x1 = Math.min(render.width, width - xOffset);
+		int y0 = Math.max(0, -yOffset);
+		int y1 = Math.min(render.height, height - yOffset);
+		int[] src = render.pixels;
+
+		SpriteSpans spans = render.spans();
+		int[] runs = spans.rowRuns;
+
+		for (int y = y0; y < y1; y++) {
+			int from = y * render.width;
+			int to = xOffset + (y + yOffset) * width;
+
+			for (int run = spans.rowIndex[y]; run < spans.rowIndex[y + 1]; run += 2) {
+				int start = Math.max(x0, runs[run]);
+				int end = Math.min(x1, runs[run + 1]);
+				if (start < end) {
+					System.arraycopy(src, from + start, pixels, to + start, end - start);
 				}
 			}
 		}
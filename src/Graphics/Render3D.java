@@ -1,44 +1,579 @@
 package Graphics;
 
 import Index.Game;
+import Index.GameSnapshot;
 import Index.Level;
 import Index.Enemy;
 import Index.Item;
+import Index.RayHit;
 import Input.Controller;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
 public class Render3D extends Render {
 
+    public static boolean parallel = true;
+    public static boolean scanlineFloor = true;
+    public static boolean visibilityOrder = true;
+    public static boolean coarseGrid = true;
+    public static boolean fixedPoint = false;
+    public static boolean fusedShading = true;
+    public static boolean columnMajor = false;
+    public static boolean tiled = false;
+    public static boolean reuseFrames = true;
+    public static boolean mipmapping = true;
+    public static int workerCount = Runtime.getRuntime().availableProcessors();
+
+    private static final int MIN_STRIP = 8;
+    private static final int TILE = 32;
+    private static final long WAKE_NANOS = 50000;
+
+    private static final double ENEMY_RADIUS = 0.7;
+    private static final double ITEM_RADIUS = 0.3;
+    private static final double NEAR_PLANE = 0.01;
+    private static final double MAX_WALL_DIST = 200;
+
+    // Depth buckets for the shade table: fine steps close up where brightness
+    // changes fast, coarse ones further out.
+    private static final int NEAR_SHADE_DEPTH = 2048;
+    private static final int NEAR_SHADE_STEPS = 8;
+    private static final int NEAR_SHADE_SIZE = NEAR_SHADE_DEPTH * NEAR_SHADE_STEPS;
+    private static final double FAR_SHADE_STEP = 32;
+    private static ForkJoinPool pool;
+
     public double[] zBuffer;
-    private double renderDistance = 15000;
+    protected double renderDistance = 15000;
+
+    public int overdraw;
+    public int raySteps;
+
+    protected final int[] wallTop;
+    protected final int[] wallBottom;
+    private final double[] wallDist;
+    private final int[] columnWrites;
+    private final int[] columnSteps;
+    private final RayHit[] hits;
+    protected int floorWrites;
+
+    // Task trees for the parallel passes, built once and reset before each
+    // use, so a frame allocates no tasks.
+    private final ColumnStrip wallColumns;
+    private final ColumnStrip traceColumns;
+    private final ColumnStrip spriteColumns;
+    private final ColumnStrip tileJobs;
+
+    // Per-column wall hit, kept so tiles can draw their slice of each strip.
+    private final int[] wallTexture;
+    private final int[] wallTexX;
+    private final int[] wallLineHeight;
+
+    private final int tileColumns;
+    private final int[] tileWrites;
+    private boolean tiledFrame;
+
+    // What the last full frame was drawn from, to skip or cut short redraws
+    // when nothing visible has moved.
+    private boolean frameValid;
+    private boolean backgroundValid;
+    protected boolean frameReused;
+    private int[] background;
+    private Level lastLevel;
+    private TextureAtlas lastAtlas;
+    private int lastLevelVersion, lastMode, lastJump;
+    // The floor is cast from the unrounded pitch, so compare that, not the int.
+    private double lastX, lastY, lastZ, lastRotation, lastPitchOffset;
+    private double[] lastSprites = new double[0];
+    private int lastSpriteCount;
+
+    private Sprite[] sprites = new Sprite[0];
+    private int spriteCount;
+    private final List<Enemy> nearbyEnemies = new ArrayList<>();
+    private final List<Item> nearbyItems = new ArrayList<>();
+    private GameSnapshot snapshot;
+
+    // Where the strip passes write. Row-major straight into pixels/zBuffer,
+    // or, with columnMajor, into column buffers (index x * height + y) that
+    // are transposed into pixels at the end of the frame.
+    private int[] target;
+    private double[] targetDepth;
+    private int xStride, yStride;
+    private boolean columnFrame;
+    private int[] columnPixels;
+    private double[] columnDepth;
+    private double[] rowDepth, rowX, rowZ, rowStepX, rowStepZ;
+    private int[] rowShade, rowLevel;
+    private double alpha = 1;
+
+    protected Level level;
+    // Textures are swapped in while loading; a frame keeps the atlas it started with.
+    protected TextureAtlas atlas;
+    protected double xPos, yPos, zPos, rotation, pitchOffset;
+    protected int pitch, jumpOffset;
+    protected boolean shadeOnWrite;
+
+    /** Size of this target relative to the window; pitch and jump are in window pixels. */
+    public double pixelScale = 1;
+
+    private final int[] shadeTable = buildShadeTable();
 
     public Render3D(int width, int height) {
-        super(width, height);
-        zBuffer = new double[width * height];
+        this(width, height, new int[width * height]);
+    }
+
+    public Render3D(int width, int height, int[] target) {
+        this(width, height, target, true);
+    }
+
+    protected Render3D(int width, int height, int[] target, boolean doubleDepth) {
+        super(width, height, target);
+        if (doubleDepth) zBuffer = new double[width * height];
+        wallTop = new int[width];
+        wallBottom = new int[width];
+        wallDist = new double[width];
+        columnWrites = new int[width];
+        columnSteps = new int[width];
+        hits = new RayHit[width];
+        for (int x = 0; x < width; x++) {
+            hits[x] = new RayHit();
+        }
+        wallTexture = new int[width];
+        wallTexX = new int[width];
+        wallLineHeight = new int[width];
+        tileColumns = (width + TILE - 1) / TILE;
+        tileWrites = new int[tileColumns * ((height + TILE - 1) / TILE)];
+
+        wallColumns = new ColumnStrip(this::castWall, 0, width);
+        traceColumns = new ColumnStrip(this::traceWall, 0, width);
+        spriteColumns = new ColumnStrip(this::drawSprites, 0, width);
+        tileJobs = new ColumnStrip(this::drawTile, 0, tileWrites.length);
+    }
+
+    public void render(Game game) {
+        render(game, 1);
+    }
+
+    /**
+     * Draws the player and enemies alpha of the way from their previous tick
+     * to their current one, so frames between ticks still move.
+     */
+    public void render(Game game, double alpha) {
+        Controller controls = game.controls;
+        this.alpha = alpha;
+        setCamera(game.level, lerp(controls.prevX, controls.x), lerp(controls.prevY, controls.y), lerp(controls.prevZ, controls.z),
+                controls.rotation, controls.rotationPitch);
+        snapshot = null;
+        drawFrame();
+    }
+
+    /** Renders a published snapshot without touching the live Game. */
+    public void render(GameSnapshot snapshot, double alpha) {
+        this.alpha = alpha;
+        setCamera(snapshot.level, lerp(snapshot.prevX, snapshot.x), lerp(snapshot.prevY, snapshot.y), lerp(snapshot.prevZ, snapshot.z),
+                snapshot.rotation, snapshot.rotationPitch);
+        this.snapshot = snapshot;
+        drawFrame();
+    }
+
+    private double lerp(double previous, double current) {
+        return previous + (current - previous) * alpha;
+    }
+
+    private void drawFrame() {
+        tiledFrame = tiled && zBuffer != null;
+        useColumns(columnMajor && zBuffer != null && !tiledFrame);
+        frameReused = false;
+
+        if (reuseFrames && frameValid && sameView()) {
+            // Walls and floor are as last frame, and so is wallDist, which
+            // is all collectSprites needs.
+            collectSprites();
+            if (sameSprites()) {
+                frameReused = true;
+                overdraw = 0;
+                raySteps = 0;
+                return;
+            }
+            if (backgroundValid) {
+                redrawSprites();
+                return;
+            }
+        }
+        rememberView();
+        backgroundValid = false;
+        frameValid = reuseFrames;
+
+        if (tiledFrame) {
+            drawTiles();
+            rememberSprites();
+            return;
+        }
+
+        if (visibilityOrder) {
+            forEach(wallColumns);
+            drawFloor();
+        } else {
+            clearSpans();
+            drawFloor();
+            forEach(wallColumns);
+        }
+        if (reuseFrames && shadeOnWrite && !columnFrame) {
+            if (background == null) background = new int[width * height];
+            System.arraycopy(pixels, 0, background, 0, background.length);
+            backgroundValid = true;
+        }
+        collectSprites();
+        rememberSprites();
+        forEach(spriteColumns);
+
+        if (columnFrame) {
+            if (!shadeOnWrite) limit(columnPixels, columnDepth, 0, width * height);
+            transpose(columnPixels, height, width, pixels);
+        }
+
+        int writes = floorWrites;
+        int steps = 0;
+        for (int x = 0; x < width; x++) {
+            writes += columnWrites[x];
+            steps += columnSteps[x];
+        }
+        overdraw = writes - width * height;
+        raySteps = steps;
+    }
+
+    /** Forgets the last frame, e.g. after something else drew into pixels. */
+    public void invalidate() {
+        frameValid = false;
+        backgroundValid = false;
+    }
+
+    private int mode() {
+        return (shadeOnWrite ? 1 : 0) | (columnFrame ? 2 : 0) | (tiledFrame ? 4 : 0) | (coarseGrid ? 8 : 0)
+                | (mipmapping ? 16 : 0);
+    }
+
+    private boolean sameView() {
+        return level == lastLevel && level.version == lastLevelVersion && mode() == lastMode && atlas == lastAtlas
+                && xPos == lastX && yPos == lastY && zPos == lastZ && rotation == lastRotation
+                && pitchOffset == lastPitchOffset && jumpOffset == lastJump;
+    }
+
+    private void rememberView() {
+        lastLevel = level;
+        lastAtlas = atlas;
+        lastLevelVersion = level.version;
+        lastMode = mode();
+        lastX = xPos;
+        lastY = yPos;
+        lastZ = zPos;
+        lastRotation = rotation;
+        lastPitchOffset = pitchOffset;
+        lastJump = jumpOffset;
+    }
+
+    private boolean sameSprites() {
+        if (spriteCount != lastSpriteCount) return false;
+        for (int i = 0; i < spriteCount; i++) {
+            Sprite sprite = sprites[i];
+            if (sprite.x != lastSprites[i * 3] || sprite.z != lastSprites[i * 3 + 1]
+                    || (sprite.enemy ? 1 : 0) != lastSprites[i * 3 + 2]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rememberSprites() {
+        if (lastSprites.length < spriteCount * 3) {
+            lastSprites = new double[spriteCount * 6];
+        }
+        for (int i = 0; i < spriteCount; i++) {
+            Sprite sprite = sprites[i];
+            lastSprites[i * 3] = sprite.x;
+            lastSprites[i * 3 + 1] = sprite.z;
+            lastSprites[i * 3 + 2] = sprite.enemy ? 1 : 0;
+        }
+        lastSpriteCount = spriteCount;
+    }
+
+    /** Only sprites moved: restore the saved wall and floor layer and draw them again. */
+    private void redrawSprites() {
+        System.arraycopy(background, 0, pixels, 0, background.length);
+        rememberSprites();
+        for (int x = 0; x < width; x++) {
+            columnWrites[x] = 0;
+        }
+        forEach(spriteColumns);
+
+        int writes = 0;
+        for (int x = 0; x < width; x++) {
+            writes += columnWrites[x];
+        }
+        overdraw = writes;
+        raySteps = 0;
     }
 
     public void floor(Game game) {
-        int floorSize = 64;
-        int floorMask = 63;
+        setCamera(game);
+        clearSpans();
+        floorColumns();
+    }
+
+    public void floorScanline(Game game) {
+        setCamera(game);
+        clearSpans();
+        floorRows();
+    }
+
+    public void walls(Game game, Level level) {
+        setCamera(game);
+        this.level = level;
+        snapshot = null;
+        forEach(wallColumns);
+        collectSprites();
+        forEach(spriteColumns);
+    }
+
+    private void setCamera(Game game) {
+        Controller controls = game.controls;
+        alpha = 1;
+        invalidate();
+        setCamera(game.level, controls.x, controls.y, controls.z, controls.rotation, controls.rotationPitch);
+    }
 
-        if (Texture.floor != null) {
-            floorSize = Texture.floor.width;
-            floorMask = floorSize - 1;
+    private void setCamera(Level level, double x, double y, double z, double rotation, double rotationPitch) {
+        // Every entry point comes through here, the stage methods included.
+        atlas = Texture.atlas;
+        this.level = level;
+        xPos = x;
+        yPos = y;
+        zPos = z;
+        this.rotation = rotation;
+        pitchOffset = rotationPitch * pixelScale;
+        pitch = (int) pitchOffset;
+        jumpOffset = (int) (y * 20 * pixelScale);
+        shadeOnWrite = fusedShading;
+        tiledFrame = false;
+        useColumns(false);
+    }
+
+    private void useColumns(boolean columns) {
+        columnFrame = columns;
+        if (columns) {
+            if (columnPixels == null) {
+                columnPixels = new int[width * height];
+                columnDepth = new double[width * height];
+            }
+            target = columnPixels;
+            targetDepth = columnDepth;
+            xStride = height;
+            yStride = 1;
+        } else {
+            target = pixels;
+            targetDepth = zBuffer;
+            xStride = 1;
+            yStride = width;
         }
+    }
 
-        double floorPosition = 8;
-        double forward = game.controls.z;
-        double right = game.controls.x;
-        double up = game.controls.y;
+    private void clearSpans() {
+        for (int x = 0; x < width; x++) {
+            wallTop[x] = 0;
+            wallBottom[x] = 0;
+        }
+    }
+
+    private void drawFloor() {
+        if (columnFrame) {
+            floorColumnMajor();
+        } else if (scanlineFloor) {
+            floorRows();
+        } else {
+            floorColumns();
+        }
+    }
+
+    private void forEach(ColumnStrip strips) {
+        if (parallel) {
+            // Park until the root signals instead of invoke(): a caller that
+            // blocks in join allocates a wait node each time. The timeout
+            // covers a signal that lands just before the task is marked done.
+            strips.reinitialize();
+            strips.waiter = Thread.currentThread();
+            pool().execute(strips);
+            while (!strips.isDone()) {
+                LockSupport.parkNanos(strips, WAKE_NANOS);
+            }
+            strips.join();
+        } else {
+            strips.run(strips.start, strips.end);
+        }
+    }
+
+    /**
+     * Tiled frame: rays are cast and sprites collected for the whole frame
+     * first, then every TILE x TILE block runs floor, walls, sprites and
+     * shading to completion on one worker, while its slice of pixels and
+     * zBuffer is still in cache.
+     */
+    private void drawTiles() {
+        forEach(traceColumns);
+        prepareFloorRows();
+        collectSprites();
+        forEach(tileJobs);
+
+        int writes = 0;
+        for (int t = 0; t < tileWrites.length; t++) {
+            writes += tileWrites[t];
+        }
+        int steps = 0;
+        for (int x = 0; x < width; x++) {
+            steps += columnSteps[x];
+        }
+        overdraw = writes - width * height;
+        raySteps = steps;
+    }
+
+    private void drawTile(int tile) {
+        int x0 = (tile % tileColumns) * TILE;
+        int y0 = (tile / tileColumns) * TILE;
+        int x1 = Math.min(width, x0 + TILE);
+        int y1 = Math.min(height, y0 + TILE);
+
+        int[] texels = atlas.pixels;
+        int writes = 0;
+
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            int shade = rowShade[y];
+            double z = rowDepth[y];
+            int level = rowLevel[y];
+            int floor = atlas.mip(Texture.FLOOR, level);
+            int floorBase = atlas.offset(floor);
+            int floorSize = atlas.width(floor);
+            int floorMask = atlas.mask(floor);
+
+            for (int x = x0; x < x1; x++) {
+                if (y >= wallTop[x] && y < wallBottom[x]) continue;
+
+                int color = 0;
+                if (shade >= 0) {
+                    int xPix = (int) (rowX[y] + rowStepX[y] * x);
+                    int zPix = (int) (rowZ[y] + rowStepZ[y] * x);
+                    color = shade(texels[floorBase + ((xPix >> level) & floorMask) + ((zPix >> level) & floorMask) * floorSize], shade);
+                }
+                pixels[row + x] = color;
+                zBuffer[row + x] = z;
+                writes++;
+            }
+        }
+
+        for (int x = x0; x < x1; x++) {
+            if (wallTexture[x] >= 0) {
+                int from = Math.max(y0, wallTop[x]);
+                int to = Math.min(y1, wallBottom[x]);
+                if (from < to) {
+                    drawWallStrip(x, wallTexture[x], wallTexX[x], wallLineHeight[x], from, to, wallDist[x]);
+                    writes += to - from;
+                }
+            }
+            writes += castSprites(x, y0, y1);
+        }
+
+        if (!shadeOnWrite) {
+            for (int y = y0; y < y1; y++) {
+                limit(pixels, zBuffer, y * width + x0, y * width + x1);
+            }
+        }
+        tileWrites[tile] = writes;
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        int workers = Math.max(1, workerCount);
+        if (pool == null || pool.getParallelism() != workers) {
+            if (pool != null) pool.shutdown();
+            pool = new ForkJoinPool(workers);
+        }
+        return pool;
+    }
+
+    private class ColumnStrip extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final IntConsumer column;
+        private final int start;
+        private final int end;
+        private final ColumnStrip left;
+        private final ColumnStrip right;
+        // Set on a root task only: the thread to wake once it is finished.
+        Thread waiter;
+
+        ColumnStrip(IntConsumer column, int start, int end) {
+            this.column = column;
+            this.start = start;
+            this.end = end;
+            if (end - start > MIN_STRIP) {
+                int mid = (start + end) >>> 1;
+                left = new ColumnStrip(column, start, mid);
+                right = new ColumnStrip(column, mid, end);
+            } else {
+                left = null;
+                right = null;
+            }
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                // Keep splitting only while idle workers could steal the other half,
+                // so strips grow when the pool is busy and shrink when it is not.
+                if (left != null && getSurplusQueuedTaskCount() <= 2) {
+                    left.reinitialize();
+                    right.reinitialize();
+                    invokeAll(left, right);
+                } else {
+                    run(start, end);
+                }
+            } finally {
+                if (waiter != null) LockSupport.unpark(waiter);
+            }
+        }
+
+        void run(int from, int to) {
+            for (int x = from; x < to; x++) {
+                column.accept(x);
+            }
+        }
+    }
+
+    protected void floorColumns() {
+        int floorBase = atlas.offset(Texture.FLOOR);
+        int floorSize = atlas.width(Texture.FLOOR);
+        int floorMask = atlas.mask(Texture.FLOOR);
 
-        double rotation = game.controls.rotation;
+        double floorPosition = 8;
+        double forward = zPos;
+        double right = xPos;
+        double up = yPos;
+        int writes = 0;
 
         for (int x = 0; x < width; x++) {
             double cameraX = 2 * x / (double) width - 1;
             double rayDirX = Math.sin(rotation) + Math.cos(rotation) * cameraX;
             double rayDirZ = Math.cos(rotation) - Math.sin(rotation) * cameraX;
 
+            int top = wallTop[x];
+            int bottom = wallBottom[x];
+
             for (int y = 0; y < height; y++) {
-                double ceiling = (y - (height / 2.0 + game.controls.rotationPitch)) / height;
+                if (y >= top && y < bottom) continue;
+
+                double ceiling = (y - (height / 2.0 + pitchOffset)) / height;
 
                 double z = (floorPosition + up) / ceiling;
                 if (ceiling < 0) {
@@ -53,297 +588,714 @@ public class Render3D extends Render {
 
                 zBuffer[x + y * width] = z;
 
-                pixels[x + y * width] = Texture.floor.pixels[(xPix & floorMask) + (yPix & floorMask) * floorSize];
+                pixels[x + y * width] = shade(atlas.pixels[floorBase + (xPix & floorMask) + (yPix & floorMask) * floorSize], shadeFor(z));
 
                 if (z > renderDistance) {
                     pixels[x + y * width] = 0;
                 }
+                writes++;
             }
         }
+        floorWrites = writes;
     }
 
-    public void walls(Game game, Level level) {
-        double xPos = game.controls.x;
-        double zPos = game.controls.z;
-        double rot = game.controls.rotation;
+    protected void floorRows() {
+        double floorPosition = 8;
+        double forward = zPos;
+        double right = xPos;
+        double up = yPos;
+
+        double sin = Math.sin(rotation);
+        double cos = Math.cos(rotation);
+        double horizon = height / 2.0 + pitchOffset;
+        int[] texels = atlas.pixels;
+        PixelKernels kernels = PixelKernels.current;
+        int writes = 0;
+
+        for (int y = 0; y < height; y++) {
+            double ceiling = (y - horizon) / height;
+
+            double z = (floorPosition + up) / ceiling;
+            if (ceiling < 0) {
+                z = (8.0 - up) / -ceiling;
+            }
+
+            int row = y * width;
+            if (z > renderDistance) {
+                for (int x = 0; x < width; x++) {
+                    if (y >= wallTop[x] && y < wallBottom[x]) continue;
+                    pixels[row + x] = 0;
+                    zBuffer[row + x] = z;
+                    writes++;
+                }
+                continue;
+            }
+
+            // Distance is constant along the row, so the world position moves
+            // by a fixed step per column (cameraX = 2 * x / width - 1).
+            double xx = right + (sin - cos) * z;
+            double yy = forward + (cos + sin) * z;
+            double stepX = 2 * cos * z / width;
+            double stepY = -2 * sin * z / width;
+            int shade = shadeFor(z);
+            int level = floorLevel(z);
+            int floor = atlas.mip(Texture.FLOOR, level);
+            int floorBase = atlas.offset(floor);
+            int floorSize = atlas.width(floor);
+            int floorMask = atlas.mask(floor);
+
+            // Texels are fetched one by one, and each run of floor between
+            // walls is then shaded in bulk by the kernels.
+            int run = -1;
+            for (int x = 0; x < width; x++) {
+                if (y < wallTop[x] || y >= wallBottom[x]) {
+                    int xPix = (int) (xx);
+                    int yPix = (int) (yy);
+
+                    zBuffer[row + x] = z;
+                    pixels[row + x] = texels[floorBase + ((xPix >> level) & floorMask) + ((yPix >> level) & floorMask) * floorSize];
+                    writes++;
+                    if (run < 0) run = x;
+                } else if (run >= 0) {
+                    kernels.shade(pixels, row + run, row + x, shade);
+                    run = -1;
+                }
 
+                xx += stepX;
+                yy += stepY;
+            }
+            if (run >= 0) kernels.shade(pixels, row + run, row + width, shade);
+        }
+        floorWrites = writes;
+    }
+
+    /**
+     * Same floor as floorRows, but the per-row values are worked out first so
+     * each column can then be filled top to bottom in the column buffer.
+     */
+    private void floorColumnMajor() {
+        prepareFloorRows();
+        int[] texels = atlas.pixels;
+
+        int writes = 0;
         for (int x = 0; x < width; x++) {
-            double fov = 1.0;
-            double cameraX = 2 * x / (double) width - 1;
+            int column = x * height;
+            int top = wallTop[x];
+            int bottom = wallBottom[x];
+
+            for (int y = 0; y < height; y++) {
+                if (y == top && bottom > top) {
+                    y = bottom - 1;
+                    continue;
+                }
+
+                int shade = rowShade[y];
+                int color = 0;
+                if (shade >= 0) {
+                    int level = rowLevel[y];
+                    int floor = atlas.mip(Texture.FLOOR, level);
+                    int floorMask = atlas.mask(floor);
+                    int xPix = (int) (rowX[y] + rowStepX[y] * x);
+                    int zPix = (int) (rowZ[y] + rowStepZ[y] * x);
+                    color = shade(texels[atlas.offset(floor) + ((xPix >> level) & floorMask) + ((zPix >> level) & floorMask) * atlas.width(floor)], shade);
+                }
+                columnPixels[column + y] = color;
+                columnDepth[column + y] = rowDepth[y];
+                writes++;
+            }
+        }
+        floorWrites = writes;
+    }
+
+    /** Floor distance, texture position and step, and shade for every row. */
+    private void prepareFloorRows() {
+        if (rowDepth == null) {
+            rowDepth = new double[height];
+            rowX = new double[height];
+            rowZ = new double[height];
+            rowStepX = new double[height];
+            rowStepZ = new double[height];
+            rowShade = new int[height];
+            rowLevel = new int[height];
+        }
 
-            double rayDirX = Math.sin(rot) + Math.cos(rot) * cameraX * fov;
-            double rayDirZ = Math.cos(rot) - Math.sin(rot) * cameraX * fov;
+        double sin = Math.sin(rotation);
+        double cos = Math.cos(rotation);
+        double horizon = height / 2.0 + pitchOffset;
 
-            int mapX = (int) xPos;
-            int mapZ = (int) zPos;
+        for (int y = 0; y < height; y++) {
+            double ceiling = (y - horizon) / height;
+            double z = (8 + yPos) / ceiling;
+            if (ceiling < 0) {
+                z = (8.0 - yPos) / -ceiling;
+            }
 
-            double sideDistX;
-            double sideDistZ;
+            rowDepth[y] = z;
+            rowX[y] = xPos + (sin - cos) * z;
+            rowZ[y] = zPos + (cos + sin) * z;
+            rowStepX[y] = 2 * cos * z / width;
+            rowStepZ[y] = -2 * sin * z / width;
+            rowShade[y] = z > renderDistance ? -1 : shadeFor(z);
+            rowLevel[y] = floorLevel(z);
+        }
+    }
 
-            double deltaDistX = Math.abs(1 / rayDirX);
-            double deltaDistZ = Math.abs(1 / rayDirZ);
-            double perpWallDist;
+    /**
+     * Floor mip level for a row at depth z: the finest level at which one
+     * column steps less than two texels. Floor texels are one world unit.
+     */
+    protected int floorLevel(double z) {
+        if (!mipmapping) return 0;
+        int levels = atlas.levels(Texture.FLOOR);
+        double footprint = 2 * z / width;
+        int level = 0;
+        while (level + 1 < levels && footprint >= (2 << level)) level++;
+        return level;
+    }
 
-            int stepX;
-            int stepZ;
+    private void castWall(int x) {
+        if (traceWall(x)) {
+            drawWallStrip(x, wallTexture[x], wallTexX[x], wallLineHeight[x], wallTop[x], wallBottom[x], wallDist[x]);
+        }
+    }
 
-            boolean hit = false;
-            int side = 0;
-            int wallType = 0;
+    private boolean traceWall(int x) {
+        double rot = rotation;
 
-            if (rayDirX < 0) {
-                stepX = -1;
-                sideDistX = (xPos - mapX) * deltaDistX;
-            } else {
-                stepX = 1;
-                sideDistX = (mapX + 1.0 - xPos) * deltaDistX;
+        double fov = 1.0;
+        double cameraX = 2 * x / (double) width - 1;
+
+        double rayDirX = Math.sin(rot) + Math.cos(rot) * cameraX * fov;
+        double rayDirZ = Math.cos(rot) - Math.sin(rot) * cameraX * fov;
+
+        wallTop[x] = 0;
+        wallBottom[x] = 0;
+        wallDist[x] = Double.MAX_VALUE;
+        wallTexture[x] = -1;
+        columnWrites[x] = 0;
+
+        RayHit rayHit = hits[x];
+        boolean hit;
+        if (coarseGrid) {
+            hit = level.castRay(xPos, zPos, rayDirX, rayDirZ, MAX_WALL_DIST, rayHit);
+        } else {
+            hit = traceTiles(rayDirX, rayDirZ, rayHit);
+        }
+        columnSteps[x] = rayHit.steps;
+
+        if (!hit) return false;
+
+        double perpWallDist = rayHit.distance;
+        int side = rayHit.side;
+        int wallType = rayHit.type;
+
+        if (perpWallDist > MAX_WALL_DIST) return false;
+
+        int lineHeight = (int) ((height * 16) / perpWallDist);
+
+        int drawStart = -lineHeight / 2 + height / 2 + pitch + jumpOffset;
+        if (drawStart < 0) drawStart = 0;
+        int drawEnd = lineHeight / 2 + height / 2 + pitch + jumpOffset;
+        if (drawEnd >= height) drawEnd = height - 1;
+
+        double wallX;
+        if (side == 0) wallX = zPos + perpWallDist * rayDirZ;
+        else           wallX = xPos + perpWallDist * rayDirX;
+        wallX -= Math.floor(wallX);
+
+
+        int textureToUse = Texture.TILES[wallType];
+        int texWidth = atlas.width(textureToUse);
+
+        int texX = (int)(wallX * texWidth);
+        if(side == 0 && rayDirX > 0) texX = texWidth - texX - 1;
+        if(side == 1 && rayDirZ < 0) texX = texWidth - texX - 1;
+
+        texX = texX & atlas.mask(textureToUse);
+
+        // Walls shrink with distance: step down to the coarsest mip level
+        // that still has at least one texel row per screen pixel.
+        if (mipmapping) {
+            int mip = 0;
+            int levels = atlas.levels(textureToUse);
+            while (mip + 1 < levels && atlas.height(atlas.mip(textureToUse, mip + 1)) >= lineHeight) mip++;
+            texX >>= mip;
+            textureToUse = atlas.mip(textureToUse, mip);
+        }
+
+        wallTexture[x] = textureToUse;
+        wallTexX[x] = texX;
+        wallLineHeight[x] = lineHeight;
+        wallTop[x] = drawStart;
+        wallBottom[x] = drawEnd;
+        wallDist[x] = perpWallDist;
+        columnWrites[x] = Math.max(0, drawEnd - drawStart);
+        return true;
+    }
+
+    protected void drawWallStrip(int x, int texture, int texX, int lineHeight, int drawStart, int drawEnd, double dist) {
+        int texWidth = atlas.width(texture);
+        int texHeight = atlas.height(texture);
+        int shade = shadeFor(dist);
+
+        // In column-major frames the texture column is contiguous as well.
+        int[] texels = columnFrame ? atlas.columns : atlas.pixels;
+        int texBase = atlas.offset(texture) + (columnFrame ? texX * texHeight : texX);
+        int texStride = columnFrame ? 1 : texWidth;
+        int i = x * xStride + drawStart * yStride;
+
+        for (int y = drawStart; y < drawEnd; y++, i += yStride) {
+            if (y >= 0 && y < height) {
+                long d = (long)(y - pitch - jumpOffset) * 256 - height * 128 + lineHeight * 128;
+                int texY = (int)((d * texHeight) / lineHeight) / 256;
+
+                if (texY < 0) texY = 0;
+                if (texY >= texHeight) texY = texHeight - 1;
+
+                int color = texels[texBase + texY * texStride];
+                target[i] = columnFrame ? color : shade(color, shade);
+                targetDepth[i] = dist;
             }
-            if (rayDirZ < 0) {
-                stepZ = -1;
-                sideDistZ = (zPos - mapZ) * deltaDistZ;
+        }
+        // A column-major strip is contiguous, so it is shaded in bulk after.
+        if (columnFrame) {
+            int column = x * height;
+            PixelKernels.current.shade(target, column + Math.max(0, drawStart), column + Math.min(height, drawEnd), shade);
+        }
+    }
+
+    private boolean traceTiles(double rayDirX, double rayDirZ, RayHit rayHit) {
+        int mapX = (int) xPos;
+        int mapZ = (int) zPos;
+
+        double sideDistX;
+        double sideDistZ;
+
+        double deltaDistX = Math.abs(1 / rayDirX);
+        double deltaDistZ = Math.abs(1 / rayDirZ);
+
+        int stepX;
+        int stepZ;
+
+        boolean hit = false;
+        int side = 0;
+        int wallType = 0;
+
+        if (rayDirX < 0) {
+            stepX = -1;
+            sideDistX = (xPos - mapX) * deltaDistX;
+        } else {
+            stepX = 1;
+            sideDistX = (mapX + 1.0 - xPos) * deltaDistX;
+        }
+        if (rayDirZ < 0) {
+            stepZ = -1;
+            sideDistZ = (zPos - mapZ) * deltaDistZ;
+        } else {
+            stepZ = 1;
+            sideDistZ = (mapZ + 1.0 - zPos) * deltaDistZ;
+        }
+
+        int maxDepth = 300;
+        int depthCount = 0;
+
+        while (!hit && depthCount < maxDepth) {
+            if (sideDistX < sideDistZ) {
+                sideDistX += deltaDistX;
+                mapX += stepX;
+                side = 0;
             } else {
-                stepZ = 1;
-                sideDistZ = (mapZ + 1.0 - zPos) * deltaDistZ;
+                sideDistZ += deltaDistZ;
+                mapZ += stepZ;
+                side = 1;
             }
+            wallType = level.getTile(mapX, mapZ);
+            if (wallType > 0) hit = true;
+            depthCount++;
+        }
 
-            int maxDepth = 300;
-            int depthCount = 0;
+        rayHit.steps = depthCount;
+        if (!hit) return false;
 
-            while (!hit && depthCount < maxDepth) {
-                if (sideDistX < sideDistZ) {
-                    sideDistX += deltaDistX;
-                    mapX += stepX;
-                    side = 0;
-                } else {
-                    sideDistZ += deltaDistZ;
-                    mapZ += stepZ;
-                    side = 1;
+        if (side == 0) rayHit.distance = (mapX - xPos + (1 - stepX) / 2) / rayDirX;
+        else           rayHit.distance = (mapZ - zPos + (1 - stepZ) / 2) / rayDirZ;
+        rayHit.side = side;
+        rayHit.type = wallType;
+        return true;
+    }
+
+    private void collectSprites() {
+        double sin = Math.sin(rotation);
+        double cos = Math.cos(rotation);
+        spriteCount = 0;
+
+        // Only entities inside the bounding box of the view triangle, out to
+        // the farthest wall drawn this frame, can be visible. Columns without
+        // a wall see across the whole level.
+        double reach = 0;
+        for (int x = 0; x < width; x++) {
+            reach = Math.max(reach, wallDist[x]);
+        }
+        reach = Math.min(reach, level.width + level.height);
+        double leftX = xPos + (sin - cos) * reach, leftZ = zPos + (cos + sin) * reach;
+        double rightX = xPos + (sin + cos) * reach, rightZ = zPos + (cos - sin) * reach;
+        double minX = Math.min(xPos, Math.min(leftX, rightX)) - ENEMY_RADIUS;
+        double maxX = Math.max(xPos, Math.max(leftX, rightX)) + ENEMY_RADIUS;
+        double minZ = Math.min(zPos, Math.min(leftZ, rightZ)) - ENEMY_RADIUS;
+        double maxZ = Math.max(zPos, Math.max(leftZ, rightZ)) + ENEMY_RADIUS;
+
+        if (snapshot != null) {
+            for (int i = 0; i < snapshot.enemyCount; i++) {
+                double ex = lerp(snapshot.enemyPrevX[i], snapshot.enemyX[i]);
+                double ez = lerp(snapshot.enemyPrevZ[i], snapshot.enemyZ[i]);
+                if (ex >= minX && ex <= maxX && ez >= minZ && ez <= maxZ) {
+                    addSprite(ex, ez, ENEMY_RADIUS, true, sin, cos);
+                }
+            }
+            for (int i = 0; i < snapshot.itemCount; i++) {
+                double ix = snapshot.itemX[i], iz = snapshot.itemZ[i];
+                if (ix >= minX && ix <= maxX && iz >= minZ && iz <= maxZ) {
+                    addSprite(ix, iz, ITEM_RADIUS, false, sin, cos);
                 }
-                wallType = level.getTile(mapX, mapZ);
-                if (wallType > 0) hit = true;
-                depthCount++;
             }
+            sortSprites();
+            return;
+        }
 
-            if (!hit) continue;
+        // Enemies are bucketed by their current position, but drawn up to one
+        // tick's movement away from it.
+        double lag = Game.enemySpeed * Game.tickScale();
+        nearbyEnemies.clear();
+        level.enemyGrid.queryBox(minX - lag, minZ - lag, maxX + lag, maxZ + lag, nearbyEnemies);
+        for (int i = 0; i < nearbyEnemies.size(); i++) {
+            Enemy e = nearbyEnemies.get(i);
+            addSprite(lerp(e.prevX, e.x), lerp(e.prevZ, e.z), ENEMY_RADIUS, true, sin, cos);
+        }
 
+        nearbyItems.clear();
+        level.itemGrid.queryBox(minX, minZ, maxX, maxZ, nearbyItems);
+        for (int i = 0; i < nearbyItems.size(); i++) {
+            Item item = nearbyItems.get(i);
+            addSprite(item.x, item.z, ITEM_RADIUS, false, sin, cos);
+        }
+        sortSprites();
+    }
 
-            if (side == 0) perpWallDist = (mapX - xPos + (1 - stepX) / 2) / rayDirX;
-            else           perpWallDist = (mapZ - zPos + (1 - stepZ) / 2) / rayDirZ;
+    private void sortSprites() {
+        // Painter's order: farthest first, so nearer sprites overwrite them.
+        for (int i = 1; i < spriteCount; i++) {
+            Sprite sprite = sprites[i];
+            int j = i - 1;
+            while (j >= 0 && sprites[j].depth < sprite.depth) {
+                sprites[j + 1] = sprites[j];
+                j--;
+            }
+            sprites[j + 1] = sprite;
+        }
+    }
 
-            if (perpWallDist > 200) continue;
+    private void addSprite(double sx, double sz, double radius, boolean enemy, double sin, double cos) {
+        double nearest = Double.MAX_VALUE;
+        double farthest = -Double.MAX_VALUE;
+        double minCamera = Double.MAX_VALUE;
+        double maxCamera = -Double.MAX_VALUE;
+        boolean crossesNearPlane = false;
+
+        for (int corner = 0; corner < 4; corner++) {
+            double vx = sx + ((corner & 1) == 0 ? -radius : radius) - xPos;
+            double vz = sz + ((corner & 2) == 0 ? -radius : radius) - zPos;
+            double depth = vx * sin + vz * cos;
+
+            nearest = Math.min(nearest, depth);
+            farthest = Math.max(farthest, depth);
+            if (depth <= NEAR_PLANE) {
+                crossesNearPlane = true;
+                continue;
+            }
+            double cameraX = (vx * cos - vz * sin) / depth;
+            minCamera = Math.min(minCamera, cameraX);
+            maxCamera = Math.max(maxCamera, cameraX);
+        }
+        if (farthest <= 0) return;
 
-            int lineHeight = (int) ((height * 16) / perpWallDist);
-            int pitch = (int) game.controls.rotationPitch;
-            int jumpOffset = (int) (game.controls.y * 20);
+        int x0 = 0;
+        int x1 = width;
+        if (!crossesNearPlane) {
+            x0 = Math.max(0, (int) Math.floor((minCamera + 1) * width / 2));
+            x1 = Math.min(width, (int) Math.ceil((maxCamera + 1) * width / 2) + 1);
+        }
 
-            int drawStart = -lineHeight / 2 + height / 2 + pitch + jumpOffset;
-            if (drawStart < 0) drawStart = 0;
-            int drawEnd = lineHeight / 2 + height / 2 + pitch + jumpOffset;
-            if (drawEnd >= height) drawEnd = height - 1;
+        boolean visible = false;
+        for (int x = x0; x < x1 && !visible; x++) {
+            visible = nearest < wallDist[x];
+        }
+        if (!visible) return;
 
-            double wallX;
-            if (side == 0) wallX = zPos + perpWallDist * rayDirZ;
-            else           wallX = xPos + perpWallDist * rayDirX;
-            wallX -= Math.floor(wallX);
+        if (spriteCount == sprites.length) {
+            sprites = Arrays.copyOf(sprites, Math.max(16, spriteCount * 2));
+            for (int i = spriteCount; i < sprites.length; i++) {
+                sprites[i] = new Sprite();
+            }
+        }
+        Sprite sprite = sprites[spriteCount++];
+        sprite.x = sx;
+        sprite.z = sz;
+        sprite.enemy = enemy;
+        sprite.depth = (sx - xPos) * sin + (sz - zPos) * cos;
+        sprite.x0 = x0;
+        sprite.x1 = x1;
+    }
 
+    private void drawSprites(int x) {
+        columnWrites[x] += castSprites(x, 0, height);
+    }
 
-            Render textureToUse = Texture.wall;
-            if (wallType == 2) textureToUse = Texture.grate;
+    /** Draws the sprites crossing column x, clipped to rows [from, to); returns pixels written. */
+    private int castSprites(int x, int from, int to) {
+        if (spriteCount == 0) return 0;
 
-            int texX = (int)(wallX * textureToUse.width);
-            if(side == 0 && rayDirX > 0) texX = textureToUse.width - texX - 1;
-            if(side == 1 && rayDirZ < 0) texX = textureToUse.width - texX - 1;
+        double rot = rotation;
 
-            int texWidth = textureToUse.width;
-            texX = texX & (texWidth - 1);
+        double fov = 1.0;
+        double cameraX = 2 * x / (double) width - 1;
 
-            for (int y = drawStart; y < drawEnd; y++) {
-                if (y >= 0 && y < height) {
-                    long d = (long)(y - pitch - jumpOffset) * 256 - height * 128 + lineHeight * 128;
-                    int texY = (int)((d * texWidth) / lineHeight) / 256;
+        double rayDirX = Math.sin(rot) + Math.cos(rot) * cameraX * fov;
+        double rayDirZ = Math.cos(rot) - Math.sin(rot) * cameraX * fov;
 
-                    if (texY < 0) texY = 0;
-                    if (texY >= texWidth) texY = texWidth - 1;
+        int writes = 0;
+        for (int i = 0; i < spriteCount; i++) {
+            Sprite sprite = sprites[i];
+            if (x < sprite.x0 || x >= sprite.x1) continue;
 
-                    int color = textureToUse.pixels[texX + texY * texWidth];
-                    pixels[x + y * width] = color;
-                    zBuffer[x + y * width] = perpWallDist;
-                }
+            if (sprite.enemy) {
+                writes += castEnemy(x, rayDirX, rayDirZ, sprite, from, to);
+            } else {
+                writes += castItem(x, rayDirX, rayDirZ, sprite, from, to);
             }
+        }
+        return writes;
+    }
 
-            double closestEntityDist = perpWallDist;
-
-            double enemyDist = Double.MAX_VALUE;
-            double enemyHitX = 0;
-
-            int enemyFace = 0;
-            boolean hitEnemy = false;
-
-            double enemyRadius = 0.7;
-
-            for (Enemy e : level.enemies) {
-                double minX = e.x - enemyRadius; double maxX = e.x + enemyRadius;
-                double minZ = e.z - enemyRadius; double maxZ = e.z + enemyRadius;
-
-
-                double t1 = (minX - xPos) / rayDirX;
-                double t2 = (maxX - xPos) / rayDirX;
-                double t3 = (minZ - zPos) / rayDirZ;
-                double t4 = (maxZ - zPos) / rayDirZ;
-
-                double tmin = Math.max(Math.min(t1, t2), Math.min(t3, t4));
-                double tmax = Math.min(Math.max(t1, t2), Math.max(t3, t4));
-
-                if (tmax >= tmin && tmin > 0) {
-                    if (tmin < enemyDist) {
-                        enemyDist = tmin;
-                        hitEnemy = true;
-
-                        double intersectX = xPos + rayDirX * tmin;
-                        double intersectZ = zPos + rayDirZ * tmin;
-
-                        if (Math.abs(intersectX - minX) < 0.01) {
-                            enemyHitX = intersectZ - minZ;
-                            enemyFace = 2;
-                        }
-                        else if (Math.abs(intersectX - maxX) < 0.01) {
-                            enemyHitX = intersectZ - minZ;
-                            enemyFace = 3;
-                        }
-                        else if (Math.abs(intersectZ - minZ) < 0.01) {
-                            enemyHitX = intersectX - minX;
-                            enemyFace = 0;
-                        }
-                        else {
-                            enemyHitX = intersectX - minX;
-                            enemyFace = 1;
-                        }
-                    }
-                }
-            }
+    private int castEnemy(int x, double rayDirX, double rayDirZ, Sprite e, int from, int to) {
+        double enemyRadius = ENEMY_RADIUS;
+
+        double minX = e.x - enemyRadius; double maxX = e.x + enemyRadius;
+        double minZ = e.z - enemyRadius; double maxZ = e.z + enemyRadius;
 
-            if (hitEnemy && enemyDist < closestEntityDist) {
-                closestEntityDist = enemyDist;
+        double t1 = (minX - xPos) / rayDirX;
+        double t2 = (maxX - xPos) / rayDirX;
+        double t3 = (minZ - zPos) / rayDirZ;
+        double t4 = (maxZ - zPos) / rayDirZ;
 
-                int standardWallHeight = (int) ((height * 16) / enemyDist);
-                int cubeHeight = Math.max(1, standardWallHeight / 4);
+        double enemyDist = Math.max(Math.min(t1, t2), Math.min(t3, t4));
+        double tmax = Math.min(Math.max(t1, t2), Math.max(t3, t4));
 
-                int screenCenterY = height / 2 + pitch + jumpOffset;
+        if (!(tmax >= enemyDist && enemyDist > 0 && enemyDist < wallDist[x])) return 0;
 
-                int eStart = screenCenterY - (cubeHeight / 2);
-                int eEnd = screenCenterY + (cubeHeight / 2);
+        double enemyHitX;
+        int enemyFace;
 
-                int drawStartClamped = Math.max(0, eStart);
-                int drawEndClamped = Math.min(height - 1, eEnd);
+        double intersectX = xPos + rayDirX * enemyDist;
+        double intersectZ = zPos + rayDirZ * enemyDist;
 
-                Render eTex = Texture.enemyFront;
-                if (enemyFace == 1) eTex = Texture.enemyBack;
-                if (enemyFace == 2) eTex = Texture.enemyLeft;
-                if (enemyFace == 3) eTex = Texture.enemyRight;
+        if (Math.abs(intersectX - minX) < 0.01) {
+            enemyHitX = intersectZ - minZ;
+            enemyFace = 2;
+        }
+        else if (Math.abs(intersectX - maxX) < 0.01) {
+            enemyHitX = intersectZ - minZ;
+            enemyFace = 3;
+        }
+        else if (Math.abs(intersectZ - minZ) < 0.01) {
+            enemyHitX = intersectX - minX;
+            enemyFace = 0;
+        }
+        else {
+            enemyHitX = intersectX - minX;
+            enemyFace = 1;
+        }
 
-                int eTexX = (int)((enemyHitX / (2.0 * enemyRadius)) * eTex.width) & (eTex.width - 1);
+        int standardWallHeight = (int) ((height * 16) / enemyDist);
+        int cubeHeight = Math.max(1, standardWallHeight / 4);
 
-                for (int y = drawStartClamped; y < drawEndClamped; y++) {
-                    int texY = ((y - eStart) * eTex.height) / cubeHeight;
-                    if (texY < 0) texY = 0; if (texY >= eTex.height) texY = eTex.height - 1;
+        int screenCenterY = height / 2 + pitch + jumpOffset;
 
-                    int col = eTex.pixels[eTexX + texY * eTex.width];
+        int eStart = screenCenterY - (cubeHeight / 2);
+        int eEnd = screenCenterY + (cubeHeight / 2);
 
-                    if ((col & 0xFF000000) != 0) {
-                        pixels[x + y * width] = col;
-                        zBuffer[x + y * width] = enemyDist;
-                    }
-                }
-            }
+        int drawStartClamped = Math.max(from, eStart);
+        int drawEndClamped = Math.min(Math.min(height - 1, eEnd), to);
+        if (drawStartClamped >= drawEndClamped) return 0;
 
-            double itemDist = Double.MAX_VALUE;
-            double itemHitX = 0;
-            int itemSide = 0;
-            boolean hitItem = false;
+        int eTex = Texture.ENEMY_FACES[enemyFace];
 
-            double itemRadius = 0.3;
+        int eTexX = (int)((enemyHitX / (2.0 * enemyRadius)) * atlas.width(eTex)) & atlas.mask(eTex);
 
-            for (Item item : level.items) {
-                double minX = item.x - itemRadius; double maxX = item.x + itemRadius;
-                double minZ = item.z - itemRadius; double maxZ = item.z + itemRadius;
+        return drawEnemyStrip(x, eTex, eTexX, eStart, cubeHeight, drawStartClamped, drawEndClamped, enemyDist);
+    }
 
-                double t1 = (minX - xPos) / rayDirX;
-                double t2 = (maxX - xPos) / rayDirX;
-                double t3 = (minZ - zPos) / rayDirZ;
-                double t4 = (maxZ - zPos) / rayDirZ;
+    private int castItem(int x, double rayDirX, double rayDirZ, Sprite item, int from, int to) {
+        double itemRadius = ITEM_RADIUS;
 
-                double tmin = Math.max(Math.min(t1, t2), Math.min(t3, t4));
-                double tmax = Math.min(Math.max(t1, t2), Math.max(t3, t4));
+        double minX = item.x - itemRadius; double maxX = item.x + itemRadius;
+        double minZ = item.z - itemRadius; double maxZ = item.z + itemRadius;
 
-                if (tmax >= tmin && tmin > 0) {
-                    if (tmin < itemDist) {
-                        itemDist = tmin;
-                        hitItem = true;
+        double t1 = (minX - xPos) / rayDirX;
+        double t2 = (maxX - xPos) / rayDirX;
+        double t3 = (minZ - zPos) / rayDirZ;
+        double t4 = (maxZ - zPos) / rayDirZ;
 
-                        double intersectX = xPos + rayDirX * tmin;
-                        double intersectZ = zPos + rayDirZ * tmin;
+        double itemDist = Math.max(Math.min(t1, t2), Math.min(t3, t4));
+        double tmax = Math.min(Math.max(t1, t2), Math.max(t3, t4));
 
-                        if (Math.abs(intersectX - minX) < 0.01) { itemHitX = intersectZ - minZ; itemSide = 0; }
-                        else if (Math.abs(intersectX - maxX) < 0.01) { itemHitX = intersectZ - minZ; itemSide = 0; }
-                        else if (Math.abs(intersectZ - minZ) < 0.01) { itemHitX = intersectX - minX; itemSide = 1; }
-                        else { itemHitX = intersectX - minX; itemSide = 1; }
-                    }
-                }
-            }
+        if (!(tmax >= itemDist && itemDist > 0 && itemDist < wallDist[x])) return 0;
 
-            if (hitItem && itemDist < closestEntityDist) {
-                int iHeight = (int) ((height * 16) / itemDist);
-                int iEnd = iHeight / 2 + height / 2 + pitch + jumpOffset;
+        double itemHitX;
+        int itemSide;
 
-                int cubeHeight = Math.max(1, iHeight / 32);
-                int iStart = iEnd - cubeHeight;
+        double intersectX = xPos + rayDirX * itemDist;
+        double intersectZ = zPos + rayDirZ * itemDist;
 
-                if (iStart < 0) iStart = 0;
-                if (iEnd >= height) iEnd = height - 1;
+        if (Math.abs(intersectX - minX) < 0.01) { itemHitX = intersectZ - minZ; itemSide = 0; }
+        else if (Math.abs(intersectX - maxX) < 0.01) { itemHitX = intersectZ - minZ; itemSide = 0; }
+        else if (Math.abs(intersectZ - minZ) < 0.01) { itemHitX = intersectX - minX; itemSide = 1; }
+        else { itemHitX = intersectX - minX; itemSide = 1; }
 
-                Render iTex = Texture.yellowSquare;
+        int iHeight = (int) ((height * 16) / itemDist);
+        int iEnd = iHeight / 2 + height / 2 + pitch + jumpOffset;
 
-                int iTexX = (int)((itemHitX / (2.0 * itemRadius)) * iTex.width) & (iTex.width - 1);
+        int cubeHeight = Math.max(1, iHeight / 32);
+        int iStart = iEnd - cubeHeight;
 
-                for (int y = iStart; y < iEnd; y++) {
-                    if (y >= 0 && y < height) {
-                        long d = (long)(y - pitch - jumpOffset) * 256 - height * 128 + iHeight * 128;
-                        int texY = (int)((d * iTex.width) / iHeight) / 256;
-                        if (texY < 0) texY = 0; if (texY >= 64) texY = 63;
+        if (iStart < 0) iStart = 0;
+        if (iEnd >= height) iEnd = height - 1;
 
-                        int col = iTex.pixels[iTexX + texY * 64];
+        int iTex = Texture.YELLOW_SQUARE;
 
-                        if (y <= iStart + 1) {
-                            col = 0xFFE6B800;
-                        } else if (itemSide == 1) {
-                            col = (col & 0xFEFEFE) >> 1;
-                        }
+        int iTexX = (int)((itemHitX / (2.0 * itemRadius)) * atlas.width(iTex)) & atlas.mask(iTex);
 
-                        pixels[x + y * width] = col;
-                        zBuffer[x + y * width] = itemDist;
-                    }
-                }
+        if (Math.max(from, iStart) >= Math.min(to, iEnd)) return 0;
+
+        return drawItemStrip(x, iTex, iTexX, iHeight, iStart, iEnd, from, to, itemSide, itemDist);
+    }
+
+    private static class Sprite {
+        double x, z, depth;
+        boolean enemy;
+        int x0, x1;
+    }
+
+    protected int drawEnemyStrip(int x, int texture, int texX, int eStart, int cubeHeight, int from, int to, double dist) {
+        int writes = 0;
+        int shade = shadeFor(dist);
+
+        int texHeight = atlas.height(texture);
+        int[] texels = columnFrame ? atlas.columns : atlas.pixels;
+        int texBase = atlas.offset(texture) + (columnFrame ? texX * texHeight : texX);
+        int texStride = columnFrame ? 1 : atlas.width(texture);
+
+        // Only the opaque runs of this texture column are walked; screen row
+        // y shows texel row (y - eStart) * texHeight / cubeHeight.
+        SpriteSpans spans = atlas.spans(texture);
+        int[] runs = spans.columnRuns;
+        for (int run = spans.columnIndex[texX]; run < spans.columnIndex[texX + 1]; run += 2) {
+            int start = Math.max(from, eStart + firstRow(runs[run], cubeHeight, texHeight));
+            int end = Math.min(to, eStart + firstRow(runs[run + 1], cubeHeight, texHeight));
+            int i = x * xStride + start * yStride;
+
+            for (int y = start; y < end; y++, i += yStride) {
+                int texY = ((y - eStart) * texHeight) / cubeHeight;
+                target[i] = shade(texels[texBase + texY * texStride], shade);
+                targetDepth[i] = dist;
             }
+            writes += Math.max(0, end - start);
         }
+        return writes;
     }
 
-    public void renderDistanceLimiter() {
-        for (int i = 0; i < width * height; i++) {
-            int color = pixels[i];
-            int brightness = (int) (renderDistance / (zBuffer[i]));
+    /** First screen row, counted from the sprite's top, that shows texel row t. */
+    protected static int firstRow(int t, int size, int texSize) {
+        return (int) (((long) t * size + texSize - 1) / texSize);
+    }
 
-            if (brightness < 0) brightness = 0;
-            if (brightness > 255) brightness = 255;
+    protected int drawItemStrip(int x, int texture, int texX, int iHeight, int iStart, int iEnd, int from, int to, int itemSide, double dist) {
+        int writes = 0;
+        int shade = shadeFor(dist);
+
+        int texHeight = atlas.height(texture);
+        int[] texels = columnFrame ? atlas.columns : atlas.pixels;
+        int texBase = atlas.offset(texture) + (columnFrame ? texX * texHeight : texX);
+        int texStride = columnFrame ? 1 : atlas.width(texture);
+        int first = Math.max(iStart, from);
+        int last = Math.min(iEnd, to);
+        int i = x * xStride + first * yStride;
+
+        for (int y = first; y < last; y++, i += yStride) {
+            if (y >= 0 && y < height) {
+                long d = (long)(y - pitch - jumpOffset) * 256 - height * 128 + iHeight * 128;
+                int texY = (int)((d * texHeight) / iHeight) / 256;
+                if (texY < 0) texY = 0; if (texY >= texHeight) texY = texHeight - 1;
+
+                int col = texels[texBase + texY * texStride];
+
+                if (y <= iStart + 1) {
+                    col = 0xFFE6B800;
+                } else if (itemSide == 1) {
+                    col = (col & 0xFEFEFE) >> 1;
+                }
 
-            int r = (color >> 16) & 0xff;
-            int g = (color >> 8) & 0xff;
-            int b = (color) & 0xff;
+                target[i] = shade(col, shade);
+                targetDepth[i] = dist;
+                writes++;
+            }
+        }
+        return writes;
+    }
 
-            r = r * brightness / 255;
-            g = g * brightness / 255;
-            b = b * brightness / 255;
+    /**
+     * Brightness (0..255) for a depth, looked up instead of divided. It matches
+     * renderDistanceLimiter to within one step per channel, and is 255 when
+     * shading is left to the separate limiter pass.
+     */
+    protected int shadeFor(double z) {
+        if (!shadeOnWrite) return 255;
+        if (!(z >= 0)) return 0;
+
+        int index = z < NEAR_SHADE_DEPTH ? (int) (z * NEAR_SHADE_STEPS) : NEAR_SHADE_SIZE + (int) Math.min((z - NEAR_SHADE_DEPTH) * (1.0 / FAR_SHADE_STEP), shadeTable.length);
+        return index < shadeTable.length ? shadeTable[index] : 0;
+    }
 
-            pixels[i] = r << 16 | g << 8 | b;
+    protected static int shade(int color, int brightness) {
+        // channel * brightness / 255 for red and blue at once, using
+        // x / 255 == (x + 1 + (x >> 8)) >> 8 on each 16-bit lane.
+        int rb = (color & 0xFF00FF) * brightness;
+        rb = ((rb + 0x10001 + ((rb >>> 8) & 0xFF00FF)) >>> 8) & 0xFF00FF;
+        int g = ((color >> 8) & 0xFF) * brightness;
+        g = (g + 1 + (g >> 8)) >> 8;
+        return rb | g << 8;
+    }
+
+    private int[] buildShadeTable() {
+        int farSize = (int) Math.ceil((renderDistance - NEAR_SHADE_DEPTH) / FAR_SHADE_STEP) + 1;
+        int[] table = new int[NEAR_SHADE_SIZE + farSize];
+
+        for (int i = 0; i < table.length; i++) {
+            double z = i < NEAR_SHADE_SIZE
+                    ? (i + 0.5) / NEAR_SHADE_STEPS
+                    : NEAR_SHADE_DEPTH + (i - NEAR_SHADE_SIZE + 0.5) * FAR_SHADE_STEP;
+            table[i] = (int) Math.max(0, Math.min(255, renderDistance / z));
         }
+        return table;
+    }
+
+    public void renderDistanceLimiter() {
+        // Column-major and tiled frames are already shaded by now, and so is
+        // a reused one.
+        if (shadeOnWrite || columnFrame || tiledFrame || frameReused) return;
+        limit(pixels, zBuffer, 0, width * height);
+    }
+
+    private void limit(int[] pixels, double[] zBuffer, int start, int end) {
+        PixelKernels.current.limit(pixels, zBuffer, start, end, renderDistance);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,135 @@
+package Graphics;
+
+import java.util.Random;
+
+import Index.Game;
+import Input.InputHandler;
+
+/**
+ * Headless frame-time comparison of the renderer paths on a hard-mode level.
+ * Run with: java -Djava.awt.headless=true Graphics.RenderBenchmark [frames]
+ */
+public class RenderBenchmark {
+
+    public static void main(String[] args) {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        Texture.load().join();
+
+        Game.currentWidth = 100;
+        Game.currentHeight = 100;
+        Game.totalItemsOnLevel = 100;
+        Game.enemyCount = 5;
+        Game game = new Game(new InputHandler());
+
+        Render3D doubleRenderer = new Render3D(800, 600);
+        FixedRender3D fixedRenderer = new FixedRender3D(800, 600);
+
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            time("double", doubleRenderer, game, frames, report);
+            Render3D.mipmapping = false;
+            time("no mipmaps", doubleRenderer, game, frames, report);
+            Render3D.mipmapping = true;
+            Render3D.columnMajor = true;
+            time("column-major", doubleRenderer, game, frames, report);
+            Render3D.columnMajor = false;
+            Render3D.tiled = true;
+            time("tiled 32x32", doubleRenderer, game, frames, report);
+            Render3D.tiled = false;
+            time("fixed 16.16", fixedRenderer, game, frames, report);
+        }
+        timeTranspose(frames);
+
+        // The default frame and the kernels on their own, per backend.
+        PixelKernels selected = PixelKernels.current;
+        for (PixelKernels kernels : new PixelKernels[] {PixelKernels.SCALAR, PixelKernels.VECTOR}) {
+            if (kernels == null) continue;
+            PixelKernels.current = kernels;
+            time(kernels.name() + " frame", doubleRenderer, game, frames, false);
+            time(kernels.name() + " frame", doubleRenderer, game, frames, true);
+            timeKernels(kernels, frames);
+        }
+        PixelKernels.current = selected;
+    }
+
+    /**
+     * Each kernel over a whole frame: floor-run shading, 2x widening of a
+     * 960x540 view to 1920x1080, and the distance pass used without fused
+     * shading.
+     */
+    private static void timeKernels(PixelKernels kernels, int frames) {
+        Random random = new Random(1);
+        int[] pixels = new int[800 * 600];
+        double[] depth = new double[800 * 600];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+            depth[i] = random.nextDouble() * 400;
+        }
+        int[] view = new int[960 * 540];
+        int[] window = new int[1920 * 1080];
+
+        for (int round = 0; round < 2; round++) {
+            long shade = 0;
+            long widen = 0;
+            long limit = 0;
+            for (int i = 0; i < frames; i++) {
+                long start = System.nanoTime();
+                for (int row = 0; row < 600; row++) {
+                    kernels.shade(pixels, row * 800, row * 800 + 800, 200);
+                }
+                shade += System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int row = 0; row < 540; row++) {
+                    kernels.widen(view, row * 960, window, row * 2 * 1920, 960, 2);
+                }
+                widen += System.nanoTime() - start;
+                start = System.nanoTime();
+                kernels.limit(pixels, depth, 0, pixels.length, 15000);
+                limit += System.nanoTime() - start;
+            }
+            if (round == 1) {
+                System.out.printf("%-22s %7.3f ms/frame shade, %.3f ms/frame widen, %.3f ms/frame limit%n",
+                        kernels.name(), shade / 1e6 / frames, widen / 1e6 / frames, limit / 1e6 / frames);
+            }
+        }
+    }
+
+    /** Cost of the column-major path's final transpose on its own. */
+    private static void timeTranspose(int frames) {
+        int[] columns = new int[800 * 600];
+        int[] rows = new int[800 * 600];
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                Render.transpose(columns, 600, 800, rows);
+            }
+            if (round == 1) {
+                System.out.printf("%-22s %7.3f ms/frame%n", "transpose only", (System.nanoTime() - start) / 1e6 / frames);
+            }
+        }
+    }
+
+    private static void time(String name, Render3D renderer, Game game, int frames, boolean report) {
+        Random random = new Random(1);
+        double startX = game.controls.x;
+        double startZ = game.controls.z;
+        long total = 0;
+
+        for (int i = 0; i < frames; i++) {
+            game.controls.rotation = random.nextDouble() * Math.PI * 2;
+            game.controls.rotationPitch = random.nextInt(200) - 100;
+
+            long start = System.nanoTime();
+            renderer.render(game);
+            renderer.renderDistanceLimiter();
+            total += System.nanoTime() - start;
+        }
+
+        game.controls.x = startX;
+        game.controls.z = startZ;
+
+        if (report) {
+            System.out.printf("%-22s %7.3f ms/frame%n", name, total / 1e6 / frames);
+        }
+    }
+}
@@ -1,25 +1,117 @@
 package Graphics;
 
+import Index.Display;
 import Index.Game;
+import Index.GameSnapshot;
 
 public class Screen extends Render {
 
+    public final DynamicResolution resolution = new DynamicResolution();
+    private final Render3D[] levels;
+    private final int[] factors;
+    private final int pixelSize;
+    private final int baseWidth, baseHeight;
     private Render3D render;
+    private int nextLevel;
 
     public Screen(int width, int height) {
-        super(width, height);
-        render = new Render3D(width, height);
+        this(width, height, new int[width * height], 1);
     }
 
-    public void render(Game game) {
-        for (int i = 0; i < width * height; i++) {
-            pixels[i] = 0;
+    /**
+     * Screen is the window-sized output; the 3D view renders at 1/pixelSize of
+     * it. When the two match, it renders straight into target, and walls and
+     * floor cover every pixel each frame, so nothing has to be cleared or
+     * copied. Otherwise it renders into its own buffer and is upscaled: by
+     * whole pixels at the base size, by nearest-neighbour at smaller dynamic
+     * resolution levels.
+     */
+    public Screen(int width, int height, int[] target, int pixelSize) {
+        super(width, height, target);
+        this.pixelSize = pixelSize;
+        baseWidth = (width + pixelSize - 1) / pixelSize;
+        baseHeight = (height + pixelSize - 1) / pixelSize;
+
+        levels = new Render3D[resolution.scales.length];
+        factors = new int[levels.length];
+        render = level(0);
+    }
+
+    /** Builds a scale level the first time it is picked; without dynres only level 0 ever is. */
+    private Render3D level(int i) {
+        if (levels[i] == null) {
+            double scale = resolution.scales[i];
+            int w = (int) Math.round(baseWidth * scale);
+            int h = (int) Math.round(baseHeight * scale);
+            int[] target = w == width && h == height ? pixels : new int[w * h];
+            levels[i] = Render3D.fixedPoint ? new FixedRender3D(w, h, target) : new Render3D(w, h, target);
+            levels[i].pixelScale = (double) h / Display.HEIGHT;
+            factors[i] = w == baseWidth && h == baseHeight ? pixelSize : 0;
+        }
+        return levels[i];
+    }
+
+    public void render(Game game, double alpha) {
+        long start = System.nanoTime();
+        selectLevel();
+        render.render(game, alpha);
+        finish(start);
+    }
+
+    public void render(GameSnapshot snapshot, double alpha) {
+        long start = System.nanoTime();
+        selectLevel();
+        render.render(snapshot, alpha);
+        finish(start);
+    }
+
+    private void selectLevel() {
+        if (render != levels[nextLevel]) {
+            // The full-size level shares the target with the upscaler, so
+            // whatever it drew last is gone by now.
+            render = level(nextLevel);
+            render.invalidate();
         }
+    }
 
-        render.floor(game);
-        render.walls(game, game.level);
+    private void finish(long start) {
         render.renderDistanceLimiter();
+        if (render.pixels != pixels) {
+            int factor = factors[nextLevel];
+            if (factor > 1) {
+                Upscaler.integer(render, this, factor);
+            } else {
+                Upscaler.nearest(render, this);
+            }
+        }
+        nextLevel = resolution.update(System.nanoTime() - start);
+    }
+
+    /** Starts over for a new game: full size, no frame history, nothing reused. */
+    public void reset() {
+        resolution.reset();
+        nextLevel = 0;
+        render.invalidate();
+    }
+
+    /** Makes the next frame draw in full, e.g. after the HUD over the last one changed. */
+    public void invalidate() {
+        render.invalidate();
+    }
+
+    public int getRenderWidth() {
+        return render.width;
+    }
+
+    public int getRenderHeight() {
+        return render.height;
+    }
+
+    public int getOverdraw() {
+        return render.overdraw;
+    }
 
-        draw(render, 0, 0);
+    public int getStepsPerRay() {
+        return render.raySteps / render.width;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,61 @@
+package Graphics;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Opaque runs of a sprite, per row and per column, so blits can copy whole
+ * runs and skip transparent ones without testing each pixel. Runs are
+ * [start, end) pairs; those of row y are rowRuns[rowIndex[y] .. rowIndex[y + 1]),
+ * and likewise for columns.
+ */
+public class SpriteSpans {
+
+    public final int[] rowIndex;
+    public final int[] rowRuns;
+    public final int[] columnIndex;
+    public final int[] columnRuns;
+
+    /** Encodes the width x height image starting at pixels[offset]. */
+    public SpriteSpans(int[] pixels, int offset, int width, int height, IntPredicate opaque) {
+        rowIndex = new int[height + 1];
+        columnIndex = new int[width + 1];
+
+        int[] runs = new int[16];
+        int count = 0;
+        for (int y = 0; y < height; y++) {
+            rowIndex[y] = count;
+            int start = -1;
+            for (int x = 0; x <= width; x++) {
+                boolean solid = x < width && opaque.test(pixels[offset + x + y * width]);
+                if (solid && start < 0) start = x;
+                if (!solid && start >= 0) {
+                    if (count + 2 > runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+                    runs[count++] = start;
+                    runs[count++] = x;
+                    start = -1;
+                }
+            }
+        }
+        rowIndex[height] = count;
+        rowRuns = Arrays.copyOf(runs, count);
+
+        count = 0;
+        for (int x = 0; x < width; x++) {
+            columnIndex[x] = count;
+            int start = -1;
+            for (int y = 0; y <= height; y++) {
+                boolean solid = y < height && opaque.test(pixels[offset + x + y * width]);
+                if (solid && start < 0) start = y;
+                if (!solid && start >= 0) {
+                    if (count + 2 > runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+                    runs[count++] = start;
+                    runs[count++] = y;
+                    start = -1;
+                }
+            }
+        }
+        columnIndex[width] = count;
+        columnRuns = Arrays.copyOf(runs, count);
+    }
+}
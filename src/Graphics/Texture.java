@@ -1,22 +1,186 @@
 package Graphics;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.imageio.ImageIO;
 
+/**
+ * Texture ids and loading. PNGs are decoded in parallel on a background
+ * pool; until one arrives its id shows a flat placeholder, and the atlas is
+ * rebuilt and swapped in as each texture lands, so a frame never waits.
+ *
+ * Each decoded PNG is also written next to it as raw ARGB (name.png.argb),
+ * which later launches memory-map instead of decoding. Run with
+ * -Dtexture.cache=false to always decode.
+ */
 public class Texture {
-    public static Render floor = loadBitmap("/templates/floor.png");
-    public static Render wall = loadBitmap("/templates/wall.png");
-    public static Render grate = loadBitmap("/templates/gr.png");
+    public static final int FLOOR = 0;
+    public static final int WALL = 1;
+    public static final int GRATE = 2;
 
-    public static Render enemyFront = loadBitmap("/templates/e_1.png");
-    public static Render enemyLeft  = loadBitmap("/templates/e_2.png");
-    public static Render enemyRight = loadBitmap("/templates/e_3.png");
-    public static Render enemyBack  = loadBitmap("/templates/e_4.png");
-    public static Render enemyTop   = loadBitmap("/templates/e_5.png");
-    public static Render enemyBot   = loadBitmap("/templates/e_6.png");
+    public static final int ENEMY_FRONT = 3;
+    public static final int ENEMY_LEFT  = 4;
+    public static final int ENEMY_RIGHT = 5;
+    public static final int ENEMY_BACK  = 6;
+    public static final int ENEMY_TOP   = 7;
+    public static final int ENEMY_BOT   = 8;
 
-    public static Render yellowSquare = genYellowTexture();
+    public static final int YELLOW_SQUARE = 9;
+
+    /** Wall texture for each tile type. */
+    public static final int[] TILES = {WALL, WALL, GRATE};
+    /** Enemy texture for each face: front, back, left, right. */
+    public static final int[] ENEMY_FACES = {ENEMY_FRONT, ENEMY_BACK, ENEMY_LEFT, ENEMY_RIGHT};
+
+    private static final String[] FILES = {
+            "/templates/floor.png", "/templates/wall.png", "/templates/gr.png",
+            "/templates/e_1.png", "/templates/e_2.png", "/templates/e_3.png",
+            "/templates/e_4.png", "/templates/e_5.png", "/templates/e_6.png",
+            null
+    };
+    private static final boolean[] MIPMAPPED = {true, true, true, false, false, false, false, false, false, false};
+
+    private static final int PLACEHOLDER = 0xFF808080;
+    private static final int CACHE_MAGIC = 0x41524742;
+    private static final int CACHE_HEADER = 28;
+
+    private static final Render[] loaded = new Render[FILES.length];
+    public static volatile TextureAtlas atlas;
+
+    private static CompletableFuture<Void> ready;
+    private static final AtomicInteger cacheHits = new AtomicInteger();
+
+    // Read here rather than from a field, as touching Texture already starts loading.
+    private static final boolean USE_CACHE = !"false".equals(System.getProperty("texture.cache"));
+
+    static {
+        loaded[YELLOW_SQUARE] = genYellowTexture();
+        atlas = pack();
+        load();
+    }
+
+    /**
+     * Starts decoding every texture on a background pool, once. The future
+     * completes when all of them are in the atlas.
+     */
+    public static synchronized CompletableFuture<Void> load() {
+        if (ready != null) return ready;
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "texture-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        CompletableFuture<?>[] jobs = new CompletableFuture<?>[FILES.length];
+        for (int id = 0; id < FILES.length; id++) {
+            String file = FILES[id];
+            int texture = id;
+            jobs[id] = file == null ? CompletableFuture.completedFuture(null)
+                    : CompletableFuture.supplyAsync(() -> read(file), pool).thenAccept(r -> publish(texture, r));
+        }
+        ready = CompletableFuture.allOf(jobs).thenRun(() -> {
+            pool.shutdown();
+            System.out.printf("Textures ready in %.1f ms (%d of %d from cache)%n",
+                    (System.nanoTime() - start) / 1e6, cacheHits.get(), FILES.length - 1);
+        });
+        return ready;
+    }
+
+    private static synchronized void publish(int id, Render texture) {
+        loaded[id] = texture;
+        atlas = atlas.with(id, texture);
+    }
+
+    private static TextureAtlas pack() {
+        Render[] textures = new Render[loaded.length];
+        for (int id = 0; id < textures.length; id++) {
+            textures[id] = loaded[id] != null ? loaded[id] : placeholder();
+        }
+        return new TextureAtlas(textures, MIPMAPPED);
+    }
+
+    private static Render placeholder() {
+        Render r = new Render(1, 1);
+        r.pixels[0] = PLACEHOLDER;
+        return r;
+    }
+
+    private static Render read(String fileName) {
+        File source = sourceFile(fileName);
+        File cache = USE_CACHE && source != null ? new File(source.getPath() + ".argb") : null;
+
+        if (cache != null) {
+            Render cached = readCache(cache, source);
+            if (cached != null) {
+                cacheHits.incrementAndGet();
+                return cached;
+            }
+        }
+        Render result = loadBitmap(fileName);
+        if (cache != null) writeCache(cache, source, result);
+        return result;
+    }
+
+    /** The asset as a plain file, or null when it lives in a jar. */
+    private static File sourceFile(String fileName) {
+        URL url = Texture.class.getResource(fileName);
+        if (url == null || !"file".equals(url.getProtocol())) return null;
+        try {
+            return new File(url.toURI());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Render readCache(File cache, File source) {
+        if (!cache.isFile()) return null;
+        try (FileChannel channel = FileChannel.open(cache.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (channel.size() < CACHE_HEADER || map.getInt() != CACHE_MAGIC) return null;
+            if (map.getLong() != source.length() || map.getLong() != source.lastModified()) return null;
+
+            int width = map.getInt();
+            int height = map.getInt();
+            if (channel.size() != CACHE_HEADER + 4L * width * height) return null;
+
+            Render result = new Render(width, height);
+            map.asIntBuffer().get(result.pixels);
+            return result;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeCache(File cache, File source, Render texture) {
+        ByteBuffer buffer = ByteBuffer.allocate(CACHE_HEADER + 4 * texture.pixels.length);
+        buffer.putInt(CACHE_MAGIC).putLong(source.length()).putLong(source.lastModified());
+        buffer.putInt(texture.width).putInt(texture.height);
+        buffer.asIntBuffer().put(texture.pixels);
+
+        // Written aside and moved into place so a concurrent launch never maps half a file.
+        File temp = new File(cache.getPath() + ".tmp");
+        try {
+            Files.write(temp.toPath(), buffer.array());
+            Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            temp.delete();
+        }
+    }
 
     public static Render loadBitmap(String fileName) {
         try {
@@ -48,4 +212,4 @@ public class Texture {
         }
         return r;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,194 @@
+package Graphics;
+
+/**
+ * Every texture packed into one int[], addressed by id. Each id has a
+ * descriptor of four ints (offset, width, height, mask) in one table, and
+ * sizes are resampled up to powers of two so texture x can wrap with the
+ * mask. A second array holds each texture transposed at the same offset
+ * (offset + x * height + y) for column-major frames.
+ *
+ * An atlas is never changed once built; new textures mean a new atlas.
+ */
+public class TextureAtlas {
+
+    public static final int OFFSET = 0;
+    public static final int WIDTH = 1;
+    public static final int HEIGHT = 2;
+    public static final int MASK = 3;
+    private static final int STRIDE = 4;
+
+    public final int[] pixels;
+    public final int[] columns;
+    public final int[] descriptors;
+    // Mip level k of texture id has id chain[id] + k; level 0 shares the
+    // texels of the texture itself.
+    private final int[] chain;
+    private final Chain[] chains;
+
+    /** Packs textures[i] as id i, followed by mip chains for the ones marked mipmapped. */
+    public TextureAtlas(Render[] textures, boolean[] mipmapped) {
+        this(build(textures, mipmapped));
+    }
+
+    private static Chain[] build(Render[] textures, boolean[] mipmapped) {
+        Chain[] chains = new Chain[textures.length];
+        for (int id = 0; id < textures.length; id++) {
+            chains[id] = new Chain(textures[id], mipmapped[id]);
+        }
+        return chains;
+    }
+
+    /**
+     * This atlas with one texture replaced. Only that texture's mip chain is
+     * built; the others are shared and just copied to their new offsets.
+     */
+    public TextureAtlas with(int id, Render texture) {
+        Chain[] replaced = chains.clone();
+        replaced[id] = new Chain(texture, chains[id].mipmapped);
+        return new TextureAtlas(replaced);
+    }
+
+    private TextureAtlas(Chain[] chains) {
+        int count = chains.length;
+        this.chains = chains;
+        chain = new int[count];
+
+        int ids = count;
+        int size = 0;
+        for (int id = 0; id < count; id++) {
+            int length = chains[id].levels.length;
+            for (Render level : chains[id].levels) {
+                size += level.width * level.height;
+            }
+            chain[id] = length > 1 ? ids : id;
+            if (length > 1) ids += length;
+        }
+
+        pixels = new int[size];
+        columns = new int[size];
+        descriptors = new int[ids * STRIDE];
+
+        int offset = 0;
+        for (int id = 0; id < count; id++) {
+            Chain c = chains[id];
+            for (int k = 0; k < c.levels.length; k++) {
+                Render level = c.levels[k];
+                if (k == 0) describe(id, offset, level);
+                if (chain[id] != id) describe(chain[id] + k, offset, level);
+                System.arraycopy(level.pixels, 0, pixels, offset, level.pixels.length);
+                System.arraycopy(c.columns[k], 0, columns, offset, c.columns[k].length);
+                offset += level.pixels.length;
+            }
+        }
+    }
+
+    /** One texture ready to pack: its mip levels, each level transposed, and its spans. */
+    private static class Chain {
+        final boolean mipmapped;
+        final Render[] levels;
+        final int[][] columns;
+        // Runs of non-transparent texels for the sprite textures, null for mipmapped ones.
+        final SpriteSpans spans;
+
+        Chain(Render texture, boolean mipmapped) {
+            this.mipmapped = mipmapped;
+            texture = powerOfTwo(texture);
+            int length = mipmapped ? 1 + Integer.numberOfTrailingZeros(Math.max(texture.width, texture.height)) : 1;
+            levels = new Render[length];
+            columns = new int[length][];
+            levels[0] = texture;
+            for (int k = 1; k < length; k++) {
+                levels[k] = halve(levels[k - 1]);
+            }
+            for (int k = 0; k < length; k++) {
+                columns[k] = new int[levels[k].pixels.length];
+                Render.transpose(levels[k].pixels, levels[k].width, levels[k].height, columns[k]);
+            }
+            spans = mipmapped ? null
+                    : new SpriteSpans(texture.pixels, 0, texture.width, texture.height, color -> (color & 0xFF000000) != 0);
+        }
+    }
+
+    private void describe(int id, int offset, Render texture) {
+        descriptors[id * STRIDE + OFFSET] = offset;
+        descriptors[id * STRIDE + WIDTH] = texture.width;
+        descriptors[id * STRIDE + HEIGHT] = texture.height;
+        descriptors[id * STRIDE + MASK] = texture.width - 1;
+    }
+
+    public int offset(int id) {
+        return descriptors[id * STRIDE + OFFSET];
+    }
+
+    public int width(int id) {
+        return descriptors[id * STRIDE + WIDTH];
+    }
+
+    public int height(int id) {
+        return descriptors[id * STRIDE + HEIGHT];
+    }
+
+    public int mask(int id) {
+        return descriptors[id * STRIDE + MASK];
+    }
+
+    /** Number of mip levels of a texture, 1 if it has none. */
+    public int levels(int id) {
+        return chains[id].levels.length;
+    }
+
+    /** Id of mip level k of a texture; level 0 looks the same as the texture. */
+    public int mip(int id, int level) {
+        return chain[id] + level;
+    }
+
+    /** Opaque runs of a texture that was added without mip levels. */
+    public SpriteSpans spans(int id) {
+        return chains[id].spans;
+    }
+
+    /** Nearest-neighbour resample up to the next power of two on each side. */
+    static Render powerOfTwo(Render texture) {
+        int width = ceilPowerOfTwo(texture.width);
+        int height = ceilPowerOfTwo(texture.height);
+        if (width == texture.width && height == texture.height) return texture;
+
+        Render result = new Render(width, height);
+        for (int y = 0; y < height; y++) {
+            int from = (y * texture.height / height) * texture.width;
+            for (int x = 0; x < width; x++) {
+                result.pixels[x + y * width] = texture.pixels[from + x * texture.width / width];
+            }
+        }
+        return result;
+    }
+
+    private static int ceilPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /** Averages 2x2 blocks; a side that is already 1 stays 1. */
+    private static Render halve(Render src) {
+        Render dst = new Render(Math.max(1, src.width / 2), Math.max(1, src.height / 2));
+        for (int y = 0; y < dst.height; y++) {
+            int y0 = Math.min(y * 2, src.height - 1) * src.width;
+            int y1 = Math.min(y * 2 + 1, src.height - 1) * src.width;
+            for (int x = 0; x < dst.width; x++) {
+                int x0 = Math.min(x * 2, src.width - 1);
+                int x1 = Math.min(x * 2 + 1, src.width - 1);
+                dst.pixels[x + y * dst.width] = average(src.pixels[x0 + y0], src.pixels[x1 + y0],
+                        src.pixels[x0 + y1], src.pixels[x1 + y1]);
+            }
+        }
+        return dst;
+    }
+
+    private static int average(int a, int b, int c, int d) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int sum = ((a >>> shift) & 0xFF) + ((b >>> shift) & 0xFF) + ((c >>> shift) & 0xFF) + ((d >>> shift) & 0xFF);
+            result |= ((sum + 2) >> 2) << shift;
+        }
+        return result;
+    }
+}
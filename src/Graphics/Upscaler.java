@@ -0,0 +1,61 @@
+package Graphics;
+
+/**
+ * Nearest-neighbour blits from a render target into a larger one. Rows that
+ * map to the same source row are copied from the row above.
+ */
+public class Upscaler {
+
+    /**
+     * Blows every source pixel up to a factor x factor block, clipped to dst.
+     * Each source row is widened once, by PixelKernels, and then replicated
+     * with arraycopy.
+     */
+    public static void integer(Render src, Render dst, int factor) {
+        int[] in = src.pixels;
+        int[] out = dst.pixels;
+        int rows = Math.min(src.height, (dst.height + factor - 1) / factor);
+        int whole = Math.min(src.width, dst.width / factor);
+
+        for (int sy = 0; sy < rows; sy++) {
+            int y = sy * factor;
+            int row = y * dst.width;
+            int from = sy * src.width;
+
+            PixelKernels.current.widen(in, from, out, row, whole, factor);
+            for (int dx = whole * factor; dx < dst.width; dx++) {
+                out[row + dx] = in[from + Math.min(src.width - 1, dx / factor)];
+            }
+
+            int copies = Math.min(factor, dst.height - y);
+            for (int k = 1; k < copies; k++) {
+                System.arraycopy(out, row, out, row + k * dst.width, dst.width);
+            }
+        }
+    }
+
+    public static void nearest(Render src, Render dst) {
+        int[] in = src.pixels;
+        int[] out = dst.pixels;
+        int step = (int) (((long) src.width << 16) / dst.width);
+        int lastRow = -1;
+
+        for (int y = 0; y < dst.height; y++) {
+            int sy = (int) ((long) y * src.height / dst.height);
+            int row = y * dst.width;
+
+            if (sy == lastRow) {
+                System.arraycopy(out, row - dst.width, out, row, dst.width);
+                continue;
+            }
+            lastRow = sy;
+
+            int from = sy * src.width;
+            int sx = 0;
+            for (int x = 0; x < dst.width; x++) {
+                out[row + x] = in[from + (sx >> 16)];
+                sx += step;
+            }
+        }
+    }
+}
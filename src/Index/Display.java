@@ -21,6 +21,7 @@ import java.awt.event.KeyEvent;
 import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
+import java.util.concurrent.locks.LockSupport;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -29,8 +30,12 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
-import Graphics.Render;
+import Graphics.DynamicResolution;
+import Graphics.Hud;
+import Graphics.PixelKernels;
+import Graphics.Render3D;
 import Graphics.Screen;
+import Graphics.Texture;
 import Input.Controller;
 import Input.InputHandler;
 
@@ -42,19 +47,36 @@ public class Display extends Canvas implements Runnable {
     public static final int HEIGHT = 600;
     public static final String TITLE = "Akshay's 3D Game";
 
+    public static boolean pipelined = false;
+    public static FramePacer.Mode paceMode = FramePacer.Mode.TARGET;
+    public static int targetFps = 60;
+    /**
+     * Window pixels per rendered pixel; the view is upscaled by whole pixels.
+     * 0 picks it from the window height, so the view stays near 800x600 and
+     * a fullscreen window costs about what the default one does.
+     */
+    public static int pixelSize = 0;
+
     public static JFrame frame;
+    /** The game in the frame; the next one takes over its screen. */
+    private static Display current;
 
     private Thread thread;
+    private Thread simThread;
+    private final TripleBuffer<GameSnapshot> snapshots = new TripleBuffer<>(GameSnapshot::new);
+    private final FramePacer pacer = new FramePacer(paceMode, targetFps);
     private Screen screen;
-    private Game game;
+    private final Hud hud;
+    Game game;
     private BufferedImage img;
     private boolean running = false;
-    private Render render;
     private int[] pixels;
-    private InputHandler input;
+    InputHandler input;
     private int newX = 0;
     private int oldX = 0;
     private int fps;
+    private final StringBuilder reportLine = new StringBuilder(128);
+    private byte[] reportBytes = new byte[128];
     private Robot robot;
 
     private boolean isFullScreen = false;
@@ -66,26 +88,53 @@ public class Display extends Canvas implements Runnable {
     public static JPanel settingsPanel;
 
     public Display() {
-        try {
-            robot = new Robot();
-        } catch (Exception e) {
-            e.printStackTrace();
+        this(null);
+    }
+
+    /**
+     * A new game. It takes over the screen and HUD of the previous one, which
+     * must be stopped, rather than building its renderers again.
+     */
+    public Display(Display previous) {
+        if (!GraphicsEnvironment.isHeadless()) {
+            try {
+                robot = new Robot();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
 
-        screen = new Screen(WIDTH, HEIGHT);
+        if (previous != null) {
+            img = previous.img;
+            pixels = previous.pixels;
+            screen = previous.screen;
+            screen.reset();
+            hud = previous.hud;
+        } else {
+            createScreen(WIDTH, HEIGHT);
+            hud = new Hud();
+        }
         input = new InputHandler();
 
         game = new Game(input);
 
-        img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
-        pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
-
         addKeyListener(input);
         addFocusListener(input);
         addMouseListener(input);
         addMouseMotionListener(input);
     }
 
+    /** Output buffer at window size; only rebuilt when the window is resized. */
+    private void createScreen(int width, int height) {
+        img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        screen = new Screen(width, height, pixels, pixelSize(height));
+    }
+
+    private static int pixelSize(int windowHeight) {
+        return pixelSize > 0 ? pixelSize : Math.max(1, Math.round(windowHeight / (float) HEIGHT));
+    }
+
     private void start() {
         if (running) {
             return;
@@ -95,11 +144,12 @@ public class Display extends Canvas implements Runnable {
         thread.start();
     }
 
+    /** Stops the game and waits for its thread, also when it already ended on its own. */
     public void stop() {
-        if (!running) {
+        running = false;
+        if (thread == null) {
             return;
         }
-        running = false;
         try {
             thread.join();
         } catch (Exception e) {
@@ -109,70 +159,160 @@ public class Display extends Canvas implements Runnable {
     }
 
     public void run() {
+        pacer.restart();
+
+        if (pipelined) {
+            runPipelined();
+            return;
+        }
+
         int frames = 0;
         double unprocessedSeconds = 0;
         long previousTime = System.nanoTime();
-        double secondsPerTick = 1 / 60.0;
+        double secondsPerTick = 1.0 / Game.tickRate;
         int tickCount = 0;
-        boolean ticked = false;
 
         while (running) {
             long currentTime = System.nanoTime();
             long passedTime = currentTime - previousTime;
             previousTime = currentTime;
             unprocessedSeconds += passedTime / 1000000000.0;
-            requestFocus();
 
             while (unprocessedSeconds > secondsPerTick) {
                 tick();
                 unprocessedSeconds -= secondsPerTick;
-                ticked = true;
                 tickCount++;
-                if (tickCount % 60 == 0) {
-                    System.out.println(frames + "fps");
-                    fps = frames;
+                if (tickCount % Game.tickRate == 0) {
+                    countSecond(frames);
                     previousTime += 1000;
                     frames = 0;
                 }
             }
-            if (ticked) {
-                render();
-                frames++;
-            }
-            render();
+            render(null, unprocessedSeconds / secondsPerTick);
+            frames++;
+
+            look();
+            pacer.waitForNextFrame();
+        }
+    }
+
+    /** Once a second, with the frames drawn in it: prints them and puts them on the HUD. */
+    void countSecond(int frames) {
+        fps = frames;
+
+        // Put together in the same builder and written out as bytes (it is
+        // all ASCII), so the report allocates nothing.
+        StringBuilder line = reportLine;
+        line.setLength(0);
+        line.append(frames).append("fps (cap ");
+        if (pacer.mode == FramePacer.Mode.UNCAPPED) {
+            line.append("off");
+        } else {
+            line.append(pacer.getTargetFps());
+        }
+        line.append(", late ").append(pacer.lateFrames).append(", dropped ").append(pacer.droppedFrames)
+                .append("), overdraw ").append(screen.getOverdraw()).append(" px, ")
+                .append(screen.getStepsPerRay()).append(" steps/ray").append(System.lineSeparator());
+
+        if (reportBytes.length < line.length()) reportBytes = new byte[line.length()];
+        for (int i = 0; i < line.length(); i++) {
+            reportBytes[i] = (byte) line.charAt(i);
+        }
+        System.out.write(reportBytes, 0, line.length());
+    }
+
+    /**
+     * Simulation ticks at a steady 60 Hz on its own thread and publishes a
+     * snapshot after each tick; this thread only draws the newest snapshot,
+     * so a slow frame or a level restart never holds up the other side.
+     */
+    private void runPipelined() {
+        snapshots.back().capture(game);
+        snapshots.publish();
+
+        simThread = new Thread(this::simulate, "simulation");
+        simThread.start();
+
+        int frames = 0;
+        long lastReport = System.nanoTime();
+        double tickNanos = 1e9 / Game.tickRate;
+
+        while (running) {
+            GameSnapshot snapshot = snapshots.latest();
+            double alpha = Math.min(1, (System.nanoTime() - snapshot.tickTime) / tickNanos);
+            render(snapshot, alpha);
             frames++;
+            pacer.waitForNextFrame();
+
+            long now = System.nanoTime();
+            if (now - lastReport >= 1000000000L) {
+                countSecond(frames);
+                frames = 0;
+                lastReport = now;
+            }
+        }
+
+        try {
+            simThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void simulate() {
+        long tickNanos = 1000000000L / Game.tickRate;
+        long nextTick = System.nanoTime();
+
+        while (running) {
+            tick();
+            look();
+
+            snapshots.back().capture(game);
+            snapshots.publish();
+
+            nextTick += tickNanos;
+            long wait = nextTick - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else if (wait < -tickNanos * 10) {
+                nextTick = System.nanoTime();
+            }
+        }
+    }
+
+    private void look() {
+        if (!hasFocus()) requestFocusInWindow();
 
-            if (hasFocus() && !game.lost) {
-                int centerX = getWidth() / 2;
-                int centerY = getHeight() / 2;
+        if (hasFocus() && !game.lost) {
+            int centerX = getWidth() / 2;
+            int centerY = getHeight() / 2;
 
-                int mouseX = InputHandler.mouseX;
-                int mouseY = InputHandler.mouseY;
+            int mouseX = InputHandler.mouseX;
+            int mouseY = InputHandler.mouseY;
 
-                int dx = mouseX - centerX;
-                int dy = mouseY - centerY;
+            int dx = mouseX - centerX;
+            int dy = mouseY - centerY;
 
-                game.controls.rotation += dx * 0.005;
+            game.controls.rotation += dx * 0.005;
 
-                game.controls.rotationPitch -= dy * 1.0;
+            game.controls.rotationPitch -= dy * 1.0;
 
-                if (game.controls.rotationPitch > 600) game.controls.rotationPitch = 600;
-                if (game.controls.rotationPitch < -600) game.controls.rotationPitch = -600;
+            if (game.controls.rotationPitch > 600) game.controls.rotationPitch = 600;
+            if (game.controls.rotationPitch < -600) game.controls.rotationPitch = -600;
 
-                if (mouseX != centerX || mouseY != centerY) {
-                    try {
-                        Point windowPos = this.getLocationOnScreen();
-                        robot.mouseMove(windowPos.x + centerX, windowPos.y + centerY);
-                        InputHandler.mouseX = centerX;
-                        InputHandler.mouseY = centerY;
-                    } catch (Exception e) {
-                    }
+            if (mouseX != centerX || mouseY != centerY) {
+                try {
+                    Point windowPos = this.getLocationOnScreen();
+                    robot.mouseMove(windowPos.x + centerX, windowPos.y + centerY);
+                    InputHandler.mouseX = centerX;
+                    InputHandler.mouseY = centerY;
+                } catch (Exception e) {
                 }
             }
         }
     }
 
-    private void tick() {
+    void tick() {
         game.tick(input.key);
 
         if (game.lost) {
@@ -239,7 +379,7 @@ public class Display extends Canvas implements Runnable {
         }
     }
 
-    private void render() {
+    private void render(GameSnapshot snapshot, double alpha) {
         if (game.lost) return;
 
         BufferStrategy bs = this.getBufferStrategy();
@@ -248,50 +388,53 @@ public class Display extends Canvas implements Runnable {
             return;
         }
 
-        screen.render(game);
-
-        for (int i = 0; i < WIDTH * HEIGHT; i++) {
-            pixels[i] = screen.pixels[i];
-        }
+        drawFrame(snapshot, alpha);
 
         Graphics g = bs.getDrawGraphics();
-        g.drawImage(img, 0, 0, getWidth(), getHeight(), null);
+        g.drawImage(img, 0, 0, null);
 
-        g.setColor(Color.WHITE);
-        g.setFont(new Font("Verdana", Font.BOLD, 20));
+        g.dispose();
+        bs.show();
+    }
 
-        String itemsLeftText;
-        if (game.collectedOnLevel >= Game.requiredOnLevel) {
-            itemsLeftText = "Вихід відкрито! (" + game.collectedOnLevel + "/" + Game.requiredOnLevel + ")";
-            g.setColor(Color.GREEN);
-        } else {
-            itemsLeftText = "Зібрати: " + game.collectedOnLevel + " / " + Game.requiredOnLevel;
+    /** Renders the view and HUD into the image; everything in a frame but showing it. */
+    void drawFrame(GameSnapshot snapshot, double alpha) {
+        if (getWidth() > 0 && getHeight() > 0 && (getWidth() != img.getWidth() || getHeight() != img.getHeight())) {
+            createScreen(getWidth(), getHeight());
         }
 
-        String scoreText = "Рахунок: " + Game.totalScore;
-
-        int uiX = getWidth() - 350;
-        g.drawString(itemsLeftText, uiX, 40);
-        g.setColor(Color.WHITE);
-        g.drawString(scoreText, uiX, 70);
-
-        g.setColor(Color.RED);
-        int cx = getWidth() / 2;
-        int cy = getHeight() / 2;
-        int size = 10;
-        g.drawLine(cx - size, cy, cx + size, cy);
-        g.drawLine(cx, cy - size, cx, cy + size);
-
-        g.setFont(new Font("Verdana", 2, 20));
-        g.setColor(Color.YELLOW);
-        g.drawString(fps + " FPS", 15, 40);
+        int collected = game.collectedOnLevel;
+        if (hud.changed(collected, Game.requiredOnLevel, Game.totalScore, fps) || DynamicResolution.enabled) {
+            screen.invalidate();
+        }
 
-        g.dispose();
-        bs.show();
+        if (snapshot != null) {
+            screen.render(snapshot, alpha);
+        } else {
+            screen.render(game, alpha);
+        }
+        hud.draw(screen, collected, Game.requiredOnLevel, Game.totalScore, fps);
+        if (DynamicResolution.enabled) {
+            hud.drawResolutionGraph(screen);
+        }
     }
 
     public static void main(String[] args) {
-        Display gameInstance = new Display();
+        Texture.load();
+        for (String arg : args) {
+            if (arg.equals("-fixed")) Render3D.fixedPoint = true;
+            if (arg.equals("-scalar")) PixelKernels.current = PixelKernels.SCALAR;
+            if (arg.equals("-pipelined")) pipelined = true;
+            if (arg.equals("-uncapped")) paceMode = FramePacer.Mode.UNCAPPED;
+            if (arg.equals("-adaptive")) paceMode = FramePacer.Mode.ADAPTIVE;
+            if (arg.startsWith("-fps=")) targetFps = Math.max(1, Integer.parseInt(arg.substring(5)));
+            if (arg.startsWith("-tickrate=")) Game.tickRate = Math.max(1, Integer.parseInt(arg.substring(10)));
+            if (arg.equals("-dynres")) DynamicResolution.enabled = true;
+            if (arg.startsWith("-pixel=")) pixelSize = Math.max(1, Integer.parseInt(arg.substring(7)));
+            if (arg.startsWith("-target=")) DynamicResolution.targetMillis = Double.parseDouble(arg.substring(8));
+        }
+
+        current = new Display();
 
         frame = new JFrame();
         frame.setTitle(TITLE);
@@ -435,7 +578,7 @@ public class Display extends Canvas implements Runnable {
                     return;
                 }
             }
-            startNewGame(gameInstance);
+            startNewGame();
         };
 
         btnEasy.addActionListener(launchGame);
@@ -443,7 +586,7 @@ public class Display extends Canvas implements Runnable {
         btnHard.addActionListener(launchGame);
         btnStartCustom.addActionListener(launchGame);
 
-        btnRestart.addActionListener(e -> startNewGame(gameInstance));
+        btnRestart.addActionListener(e -> startNewGame());
 
         btnMenu.addActionListener(e -> {
             frame.setContentPane(mainMenuPanel);
@@ -456,10 +599,11 @@ public class Display extends Canvas implements Runnable {
         frame.setVisible(true);
     }
 
-    private static void startNewGame(Display display) {
-        display.stop();
+    private static void startNewGame() {
+        current.stop();
 
-        Display newGame = new Display();
+        Display newGame = new Display(current);
+        current = newGame;
         JPanel gameContainer = new JPanel(new BorderLayout());
         gameContainer.add(newGame);
 
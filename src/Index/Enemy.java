@@ -2,26 +2,33 @@ package Index;
 
 import Input.Controller;
 
-public class Enemy {
-    public double x, z;
+public class Enemy extends Entity {
+    public double prevX, prevZ;
 
     private double targetX;
     private double targetZ;
     private boolean hasTarget = false;
 
     public Enemy(double x, double z) {
-        this.x = x;
-        this.z = z;
+        super(x, z);
+        this.prevX = x;
+        this.prevZ = z;
         this.targetX = x;
         this.targetZ = z;
     }
 
     public void tick(Controller player, Level level) {
-        double distToPlayer = Math.sqrt(Math.pow(player.x - x, 2) + Math.pow(player.z - z, 2));
+        prevX = x;
+        prevZ = z;
 
+        double px = player.x - x;
+        double pz = player.z - z;
         double hearingLimit = Game.enemyHearingRadius * 10.0;
+        boolean inHearing = hearingLimit > 0 && px * px + pz * pz < hearingLimit * hearingLimit;
 
-        if (player.isMoving && !player.isCrouching && distToPlayer < hearingLimit) {
+        boolean noticed = player.isMoving
+                || (Game.enemySight && level.hasLineOfSight(x, z, player.x, player.z));
+        if (noticed && !player.isCrouching && inHearing) {
             targetX = player.x;
             targetZ = player.z;
             hasTarget = true;
@@ -36,15 +43,22 @@ public class Enemy {
                 dx /= distToTarget;
                 dz /= distToTarget;
 
-                double moveX = dx * Game.enemySpeed;
-                double moveZ = dz * Game.enemySpeed;
+                // At lower tick rates an enemy covers more ground per tick, in
+                // steps no longer than one 60 Hz move so walls still stop it.
+                double distance = Game.enemySpeed * Game.tickScale();
+                for (double moved = 0; moved < distance; moved += Game.enemySpeed) {
+                    double step = Math.min(Game.enemySpeed, distance - moved);
+                    double moveX = dx * step;
+                    double moveZ = dz * step;
 
-                if (isFree(x + moveX, z, level)) {
-                    x += moveX;
-                }
-                if (isFree(x, z + moveZ, level)) {
-                    z += moveZ;
+                    if (isFree(x + moveX, z, level)) {
+                        x += moveX;
+                    }
+                    if (isFree(x, z + moveZ, level)) {
+                        z += moveZ;
+                    }
                 }
+                level.enemyGrid.move(this);
             } else {
                 hasTarget = false;
             }
@@ -0,0 +1,16 @@
+package Index;
+
+public class Entity {
+    public double x, z;
+
+    // Intrusive links for the SpatialGrid bucket this entity is stored in.
+    Entity nextInCell;
+    Entity prevInCell;
+    int cell = -1;
+    int queryStamp;
+
+    public Entity(double x, double z) {
+        this.x = x;
+        this.z = z;
+    }
+}
@@ -0,0 +1,85 @@
+package Index;
+
+import java.awt.event.KeyEvent;
+import java.lang.management.ManagementFactory;
+
+import Graphics.Texture;
+
+/**
+ * Headless regression check for per-frame garbage: drives a Display through
+ * the same tick, draw and once-a-second report it runs in game, minus putting
+ * the image on screen, and exits with status 1 if the steady-state frames
+ * allocate more than the allowed bytes per frame, counted over all threads
+ * so render workers are included. The default allowance of one byte per
+ * frame absorbs one-off allocations such as a work queue growing.
+ * Run with: java -Djava.awt.headless=true Index.FrameAllocationCheck [frames] [bytesPerFrame]
+ */
+public class FrameAllocationCheck {
+
+    private static final int WARMUP_FRAMES = 3000;
+
+    public static void main(String[] args) {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        double allowed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        Texture.load().join();
+
+        // Enemies that hear the player and chase, but spawn over 100 units
+        // away and crawl too slowly to get there, and an exit that never
+        // opens, so the run stays on one level with every path in use.
+        Game.currentWidth = 30;
+        Game.currentHeight = 30;
+        Game.enemyCount = 4;
+        Game.enemyHearingRadius = 50;
+        Game.enemySpeed = 0.005;
+        Game.requiredOnLevel = Integer.MAX_VALUE;
+        Display display = new Display();
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        run(display, 0, WARMUP_FRAMES);
+        long before = allocatedBytes(threads);
+        run(display, WARMUP_FRAMES, frames);
+        long bytes = allocatedBytes(threads) - before;
+
+        if (display.game.lost) {
+            System.out.println("FAILED: an enemy reached the player, so the run did not stay on one level");
+            System.exit(1);
+        }
+
+        double perFrame = (double) bytes / frames;
+        System.out.printf("%d frames, %d bytes allocated, %.2f bytes/frame (allowed %.2f)%n",
+                frames, bytes, perFrame, allowed);
+        if (perFrame > allowed) {
+            System.out.println("FAILED: the frame loop allocates");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * One tick per frame, walking back and forth while turning so rays,
+     * sprites and items all change, with a report every tickRate frames.
+     */
+    private static void run(Display display, int first, int frames) {
+        boolean[] key = display.input.key;
+        for (int frame = first; frame < first + frames; frame++) {
+            key[KeyEvent.VK_W] = frame / 60 % 2 == 0;
+            key[KeyEvent.VK_S] = !key[KeyEvent.VK_W];
+            display.game.controls.rotation += 0.01;
+
+            display.tick();
+            display.drawFrame(null, 0.5);
+            if ((frame + 1) % Game.tickRate == 0) {
+                display.countSecond(Game.tickRate);
+            }
+        }
+    }
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threads) {
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+}
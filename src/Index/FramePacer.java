@@ -0,0 +1,85 @@
+package Index;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the render loop. TARGET holds a fixed frame rate, UNCAPPED never
+ * waits, and ADAPTIVE drops to an even fraction of the target (1/2, 1/3,
+ * 1/4) while frames keep taking longer than the target interval.
+ */
+public class FramePacer {
+
+    public enum Mode { TARGET, UNCAPPED, ADAPTIVE }
+
+    // parkNanos can oversleep by a scheduler quantum, so it wakes this much
+    // early and spins the rest of the way to the deadline.
+    private static final long SPIN_NANOS = 1000000;
+    private static final int MAX_DIVISOR = 4;
+
+    public final Mode mode;
+    private final long targetNanos;
+    private long frameNanos;
+    private long deadline;
+    private long frameStart;
+    private double averageCost;
+
+    /** Frames that started after their deadline. */
+    public int lateFrames;
+    /** Whole frame slots skipped because a frame ran past them. */
+    public int droppedFrames;
+
+    public FramePacer(Mode mode, int targetFps) {
+        this.mode = mode;
+        targetNanos = 1000000000L / targetFps;
+        frameNanos = targetNanos;
+        restart();
+    }
+
+    /** Starts timing from now, e.g. when the loop starts some time after construction. */
+    public void restart() {
+        deadline = System.nanoTime() + frameNanos;
+        frameStart = System.nanoTime();
+    }
+
+    public int getTargetFps() {
+        return (int) (1000000000L / frameNanos);
+    }
+
+    /** Blocks until the next frame is due. */
+    public void waitForNextFrame() {
+        long now = System.nanoTime();
+        if (mode == Mode.ADAPTIVE) adapt(now - frameStart);
+        if (mode == Mode.UNCAPPED) {
+            frameStart = now;
+            return;
+        }
+
+        long wait = deadline - now;
+        if (wait < 0) {
+            long missed = -wait / frameNanos;
+            lateFrames++;
+            droppedFrames += (int) missed;
+            deadline += (missed + 1) * frameNanos;
+            frameStart = now;
+            return;
+        }
+
+        if (wait > SPIN_NANOS) {
+            LockSupport.parkNanos(wait - SPIN_NANOS);
+        }
+        while (System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+
+        frameStart = deadline;
+        deadline += frameNanos;
+    }
+
+    private void adapt(long cost) {
+        averageCost = averageCost == 0 ? cost : averageCost * 0.9 + cost * 0.1;
+
+        int divisor = (int) Math.ceil(averageCost * 1.05 / targetNanos);
+        divisor = Math.max(1, Math.min(MAX_DIVISOR, divisor));
+        frameNanos = targetNanos * divisor;
+    }
+}
@@ -1,6 +1,8 @@
 package Index;
 
 import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.List;
 import Input.Controller;
 import Input.InputHandler;
 
@@ -20,10 +22,18 @@ public class Game {
     public static int enemyCount = 1;
     public static double enemyHearingRadius = 4.0;
     public static double enemySpeed = 0.5;
+    /** Whether enemies also spot a player standing still in plain sight. Off: they only hear movement. */
+    public static boolean enemySight = false;
+    /** Simulation ticks per second. Movement is tuned per 60 Hz tick and scaled to match. */
+    public static int tickRate = 60;
 
     public int collectedOnLevel = 0;
     public boolean exitOpen = false;
 
+    private final List<Enemy> nearby = new ArrayList<>();
+    private final List<Item> aimed = new ArrayList<>();
+    private double controllerSteps;
+
     public Game(InputHandler input) {
         this.input = input;
         startLevel();
@@ -34,10 +44,15 @@ public class Game {
         controls = new Controller();
         controls.x = level.spawnX;
         controls.z = level.spawnZ;
+        controls.rememberPosition();
         collectedOnLevel = 0;
         exitOpen = false;
     }
 
+    public static double tickScale() {
+        return 60.0 / tickRate;
+    }
+
     public void tick(boolean[] key) {
         if (lost) return;
 
@@ -50,20 +65,38 @@ public class Game {
         boolean crouch = key[KeyEvent.VK_CONTROL];
         boolean run = key[KeyEvent.VK_SHIFT];
 
-        controls.tick(forward, back, left, right, jump, crouch, run, level);
+        // The controller's damping and gravity are per 60 Hz step, so it runs
+        // as many steps as fit in this tick.
+        controls.rememberPosition();
+        controllerSteps += tickScale();
+        while (controllerSteps >= 1) {
+            controls.tick(forward, back, left, right, jump, crouch, run, level);
+            controllerSteps--;
+        }
+
+        // Indexed loops and squared distances: this runs every tick and
+        // should not allocate iterators or call pow/sqrt.
+        List<Enemy> enemies = level.enemies;
+        for (int i = 0; i < enemies.size(); i++) {
+            enemies.get(i).tick(controls, level);
+        }
 
-        for (Enemy enemy : level.enemies) {
-            enemy.tick(controls, level);
-            double dist = Math.sqrt(Math.pow(controls.x - enemy.x, 2) + Math.pow(controls.z - enemy.z, 2));
-            if (dist < 0.8) {
+        nearby.clear();
+        level.enemyGrid.queryRadius(controls.x, controls.z, 0.8, nearby);
+        for (int i = 0; i < nearby.size(); i++) {
+            Enemy enemy = nearby.get(i);
+            double dx = controls.x - enemy.x;
+            double dz = controls.z - enemy.z;
+            if (dx * dx + dz * dz < 0.8 * 0.8) {
                 lost = true;
                 totalScore = 0;
             }
         }
 
         if (exitOpen) {
-            double distToExit = Math.sqrt(Math.pow(controls.x - level.exitPixelX, 2) + Math.pow(controls.z - level.exitPixelZ, 2));
-            if (distToExit < 15.0) {
+            double dx = controls.x - level.exitPixelX;
+            double dz = controls.z - level.exitPixelZ;
+            if (dx * dx + dz * dz < 15.0 * 15.0) {
                 startLevel();
             }
         }
@@ -71,34 +104,42 @@ public class Game {
         if (input.interact) {
             input.interact = false;
 
-            for (int i = 0; i < level.items.size(); i++) {
-                Item item = level.items.get(i);
+            double dx = Math.sin(controls.rotation);
+            double dz = Math.cos(controls.rotation);
 
+            aimed.clear();
+            level.itemGrid.queryRay(controls.x, controls.z, dx, dz, 20.0, 0.4, aimed);
+
+            Item picked = null;
+            double pickedDistance = Double.MAX_VALUE;
+            for (int i = 0; i < aimed.size(); i++) {
+                Item item = aimed.get(i);
                 double vx = item.x - controls.x;
                 double vz = item.z - controls.z;
-                double dist = Math.sqrt(vx*vx + vz*vz);
 
-                if (dist < 20.0) {
-                    double dx = Math.sin(controls.rotation);
-                    double dz = Math.cos(controls.rotation);
+                if (vx * vx + vz * vz < 20.0 * 20.0) {
                     double distanceToItem = vx * dx + vz * dz;
                     if (distanceToItem < 0) continue;
 
                     double distanceFromCrosshair = Math.abs(vx * dz - vz * dx);
 
-                    if (distanceFromCrosshair < 0.4) {
-                        level.items.remove(i);
-                        totalScore++;
-                        collectedOnLevel++;
-
-                        if (collectedOnLevel >= requiredOnLevel && !exitOpen) {
-                            level.openExit();
-                            exitOpen = true;
-                        }
-                        break;
+                    if (distanceFromCrosshair < 0.4 && distanceToItem < pickedDistance) {
+                        picked = item;
+                        pickedDistance = distanceToItem;
                     }
                 }
             }
+
+            if (picked != null) {
+                level.removeItem(picked);
+                totalScore++;
+                collectedOnLevel++;
+
+                if (collectedOnLevel >= requiredOnLevel && !exitOpen) {
+                    level.openExit();
+                    exitOpen = true;
+                }
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package Index;
+
+import java.util.Arrays;
+import java.util.List;
+
+import Input.Controller;
+
+/**
+ * Copy of everything the renderer reads from a Game: the player pose, the
+ * level and the positions of enemies and items. Snapshots are reused, so the
+ * arrays only grow, and a published snapshot is never written until the
+ * renderer has moved on to a newer one.
+ */
+public class GameSnapshot {
+    public Level level;
+    public double x, y, z, rotation, rotationPitch;
+    public double prevX, prevY, prevZ;
+    /** System.nanoTime() when the tick that produced this snapshot finished. */
+    public long tickTime;
+
+    public int enemyCount;
+    public double[] enemyX = new double[0];
+    public double[] enemyZ = new double[0];
+    public double[] enemyPrevX = new double[0];
+    public double[] enemyPrevZ = new double[0];
+
+    public int itemCount;
+    public double[] itemX = new double[0];
+    public double[] itemZ = new double[0];
+
+    public void capture(Game game) {
+        Controller controls = game.controls;
+        level = game.level;
+        x = controls.x;
+        y = controls.y;
+        z = controls.z;
+        rotation = controls.rotation;
+        rotationPitch = controls.rotationPitch;
+        prevX = controls.prevX;
+        prevY = controls.prevY;
+        prevZ = controls.prevZ;
+        tickTime = System.nanoTime();
+
+        List<Enemy> enemies = level.enemies;
+        enemyCount = enemies.size();
+        if (enemyX.length < enemyCount) {
+            enemyX = Arrays.copyOf(enemyX, enemyCount * 2);
+            enemyZ = Arrays.copyOf(enemyZ, enemyCount * 2);
+            enemyPrevX = Arrays.copyOf(enemyPrevX, enemyCount * 2);
+            enemyPrevZ = Arrays.copyOf(enemyPrevZ, enemyCount * 2);
+        }
+        for (int i = 0; i < enemyCount; i++) {
+            Enemy e = enemies.get(i);
+            enemyX[i] = e.x;
+            enemyZ[i] = e.z;
+            enemyPrevX[i] = e.prevX;
+            enemyPrevZ[i] = e.prevZ;
+        }
+
+        List<Item> items = level.items;
+        itemCount = items.size();
+        if (itemX.length < itemCount) {
+            itemX = Arrays.copyOf(itemX, itemCount * 2);
+            itemZ = Arrays.copyOf(itemZ, itemCount * 2);
+        }
+        for (int i = 0; i < itemCount; i++) {
+            Item item = items.get(i);
+            itemX[i] = item.x;
+            itemZ[i] = item.z;
+        }
+    }
+}
@@ -1,10 +1,8 @@
 package Index;
 
-public class Item {
-    public double x, z;
+public class Item extends Entity {
 
     public Item(double x, double z) {
-        this.x = x;
-        this.z = z;
+        super(x, z);
     }
 }
\ No newline at end of file
@@ -6,20 +6,45 @@ import java.util.List;
 import java.util.Random;
 
 public class Level {
+    public static boolean skipEmptySpace = true;
+
     public int width;
     public int height;
     public int[] tiles;
     private int[][] map;
 
+    // Wall geometry of each map cell in tile units: a post in the cell's corner
+    // plus the bars that refreshTiles draws towards the next cell in x and z.
+    private int[] cells;
+    private int scale;
+
+    private static final int POST_SHIFT = 0;
+    private static final int X_BAR_SHIFT = 2;
+    private static final int Z_BAR_SHIFT = 4;
+
+    // Chebyshev distance in cells to the nearest cell with walls, capped at
+    // MAX_CLEARANCE. castRay uses it to jump across open areas.
+    private byte[] clearance;
+    private int[] clearanceScratch;
+    private static final int MAX_CLEARANCE = 32;
+
+    private final RayHit sightHit = new RayHit();
+
     public double spawnX;
     public double spawnZ;
 
     public double exitPixelX;
     public double exitPixelZ;
 
+    /** Bumped whenever the geometry changes, so cached views can tell. */
+    public int version;
+
     public List<Enemy> enemies = new ArrayList<>();
     public List<Item> items = new ArrayList<>();
 
+    public SpatialGrid<Enemy> enemyGrid;
+    public SpatialGrid<Item> itemGrid;
+
     public Level(int w, int h, int itemCount, int enemyCount) {
 
         if (w % 2 == 0) w++;
@@ -54,6 +79,9 @@ public class Level {
 
         int scale = 10;
 
+        enemyGrid = new SpatialGrid<>(mapWidth, mapHeight, scale);
+        itemGrid = new SpatialGrid<>(mapWidth, mapHeight, scale);
+
         int side = random.nextInt(4);
         int exitPos = 1 + random.nextInt(mapWidth - 3);
         if (side == 0) {
@@ -92,7 +120,9 @@ public class Level {
                     break;
                 }
             }
-            enemies.add(new Enemy(enemyGx * scale + scale/2.0, enemyGz * scale + scale/2.0));
+            Enemy enemy = new Enemy(enemyGx * scale + scale/2.0, enemyGz * scale + scale/2.0);
+            enemies.add(enemy);
+            enemyGrid.insert(enemy);
         }
 
         for (int i = 0; i < itemCount; i++) {
@@ -109,7 +139,9 @@ public class Level {
             double offsetX = padding + random.nextDouble() * availableSpace;
             double offsetZ = padding + random.nextDouble() * availableSpace;
 
-            items.add(new Item(itemGx * scale + offsetX, itemGz * scale + offsetZ));
+            Item item = new Item(itemGx * scale + offsetX, itemGz * scale + offsetZ);
+            items.add(item);
+            itemGrid.insert(item);
         }
 
         this.width = mapWidth * scale;
@@ -117,25 +149,34 @@ public class Level {
         tiles = new int[this.width * this.height];
 
         refreshTiles(scale);
+        updateClearance(0, 0, mapWidth - 1, mapHeight - 1);
     }
 
     public void refreshTiles(int scale) {
+        this.scale = scale;
+        if (cells == null) cells = new int[map.length * map[0].length];
+
         for (int y = 0; y < map[0].length; y++) {
             for (int x = 0; x < map.length; x++) {
                 int type = map[x][y];
+                int cell = x + y * map.length;
                 if (type == 1 || type == 2) {
                     int pixelX = x * scale;
                     int pixelY = y * scale;
                     tiles[pixelX + pixelY * this.width] = type;
+                    cells[cell] = (cells[cell] & ~(3 << POST_SHIFT)) | (type << POST_SHIFT);
                     if (x + 1 < map.length && (map[x+1][y] == 1 || map[x+1][y] == 2)) {
                         int fill = (type == 2 && map[x+1][y] == 2) ? 2 : 1;
                         for (int i=1; i<scale; i++) tiles[(pixelX+i)+pixelY*this.width] = fill;
+                        cells[cell] = (cells[cell] & ~(3 << X_BAR_SHIFT)) | (fill << X_BAR_SHIFT);
                     }
                     if (y + 1 < map[0].length && (map[x][y+1] == 1 || map[x][y+1] == 2)) {
                         int fill = (type == 2 && map[x][y+1] == 2) ? 2 : 1;
                         for (int i=1; i<scale; i++) tiles[pixelX+(pixelY+i)*this.width] = fill;
+                        cells[cell] = (cells[cell] & ~(3 << Z_BAR_SHIFT)) | (fill << Z_BAR_SHIFT);
                     }
                 } else {
+                    cells[cell] = 0;
                     int pixelX = x * scale;
                     int pixelY = y * scale;
                     for(int xx=0; xx<scale; xx++) {
@@ -148,18 +189,85 @@ public class Level {
         }
     }
 
+    public void removeItem(Item item) {
+        items.remove(item);
+        itemGrid.remove(item);
+    }
+
     public void openExit() {
         boolean changed = false;
+        int minX = map.length, minY = map[0].length, maxX = -1, maxY = -1;
         for(int x = 0; x < map.length; x++) {
             for(int y = 0; y < map[0].length; y++) {
                 if(map[x][y] == 2) {
                     map[x][y] = 0;
                     changed = true;
+                    minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+                    minY = Math.min(minY, y); maxY = Math.max(maxY, y);
                 }
             }
         }
         if (changed) {
             refreshTiles(10);
+            updateClearance(minX, minY, maxX, maxY);
+            version++;
+        }
+    }
+
+    private void updateClearance(int minX, int minY, int maxX, int maxY) {
+        int cols = map.length;
+        int rows = map[0].length;
+        if (clearance == null) clearance = new byte[cols * rows];
+
+        // Cells up to MAX_CLEARANCE away from a change can get a new value, and
+        // each of those depends on cells up to MAX_CLEARANCE further out.
+        int wx0 = Math.max(0, minX - MAX_CLEARANCE), wx1 = Math.min(cols - 1, maxX + MAX_CLEARANCE);
+        int wy0 = Math.max(0, minY - MAX_CLEARANCE), wy1 = Math.min(rows - 1, maxY + MAX_CLEARANCE);
+        int rx0 = Math.max(0, wx0 - MAX_CLEARANCE), rx1 = Math.min(cols - 1, wx1 + MAX_CLEARANCE);
+        int ry0 = Math.max(0, wy0 - MAX_CLEARANCE), ry1 = Math.min(rows - 1, wy1 + MAX_CLEARANCE);
+
+        int rw = rx1 - rx0 + 1;
+        int rh = ry1 - ry0 + 1;
+        if (clearanceScratch == null || clearanceScratch.length < rw * rh) {
+            clearanceScratch = new int[rw * rh];
+        }
+        int[] d = clearanceScratch;
+
+        for (int y = 0; y < rh; y++) {
+            for (int x = 0; x < rw; x++) {
+                d[x + y * rw] = cells[(rx0 + x) + (ry0 + y) * cols] != 0 ? 0 : MAX_CLEARANCE;
+            }
+        }
+
+        for (int y = 0; y < rh; y++) {
+            for (int x = 0; x < rw; x++) {
+                int v = d[x + y * rw];
+                if (x > 0) v = Math.min(v, d[x - 1 + y * rw] + 1);
+                if (y > 0) {
+                    v = Math.min(v, d[x + (y - 1) * rw] + 1);
+                    if (x > 0) v = Math.min(v, d[x - 1 + (y - 1) * rw] + 1);
+                    if (x < rw - 1) v = Math.min(v, d[x + 1 + (y - 1) * rw] + 1);
+                }
+                d[x + y * rw] = v;
+            }
+        }
+        for (int y = rh - 1; y >= 0; y--) {
+            for (int x = rw - 1; x >= 0; x--) {
+                int v = d[x + y * rw];
+                if (x < rw - 1) v = Math.min(v, d[x + 1 + y * rw] + 1);
+                if (y < rh - 1) {
+                    v = Math.min(v, d[x + (y + 1) * rw] + 1);
+                    if (x < rw - 1) v = Math.min(v, d[x + 1 + (y + 1) * rw] + 1);
+                    if (x > 0) v = Math.min(v, d[x - 1 + (y + 1) * rw] + 1);
+                }
+                d[x + y * rw] = v;
+            }
+        }
+
+        for (int y = wy0; y <= wy1; y++) {
+            for (int x = wx0; x <= wx1; x++) {
+                clearance[x + y * cols] = (byte) d[(x - rx0) + (y - ry0) * rw];
+            }
         }
     }
 
@@ -180,6 +288,113 @@ public class Level {
         }
     }
 
+    /**
+     * Casts a ray over the map cells instead of the expanded tiles array and
+     * intersects the thin walls inside each cell analytically. The direction
+     * does not have to be normalized; the distance is measured in its units,
+     * which matches the tile DDA in Render3D.
+     */
+    public boolean castRay(double ox, double oz, double dirX, double dirZ, double maxDist, RayHit hit) {
+        int cols = map.length;
+        int rows = map[0].length;
+        double size = scale;
+
+        int cellX = (int) Math.floor(ox / size);
+        int cellZ = (int) Math.floor(oz / size);
+
+        double invX = 1 / dirX;
+        double invZ = 1 / dirZ;
+        double deltaX = Math.abs(size * invX);
+        double deltaZ = Math.abs(size * invZ);
+
+        double sideX = ((invX < 0 ? cellX : cellX + 1) * size - ox) * invX;
+        double sideZ = ((invZ < 0 ? cellZ : cellZ + 1) * size - oz) * invZ;
+        int stepX = invX < 0 ? -1 : 1;
+        int stepZ = invZ < 0 ? -1 : 1;
+
+        hit.steps = 0;
+        hit.distance = Double.MAX_VALUE;
+
+        while (cellX >= 0 && cellZ >= 0 && cellX < cols && cellZ < rows) {
+            hit.steps++;
+
+            int index = cellX + cellZ * cols;
+            int cell = cells[index];
+            int reach = skipEmptySpace ? clearance[index] - 1 : 0;
+            if (reach > 0) {
+                // Leave the square of empty cells around this one in one step.
+                double exitX = ((invX < 0 ? cellX - reach : cellX + reach + 1) * size - ox) * invX;
+                double exitZ = ((invZ < 0 ? cellZ - reach : cellZ + reach + 1) * size - oz) * invZ;
+                if (exitX < exitZ) {
+                    if (exitX > maxDist) break;
+                    int z = (int) Math.floor((oz + dirZ * exitX) / size);
+                    cellZ = Math.max(cellZ - reach, Math.min(cellZ + reach, z));
+                    cellX += stepX * (reach + 1);
+                } else {
+                    if (exitZ > maxDist) break;
+                    int x = (int) Math.floor((ox + dirX * exitZ) / size);
+                    cellX = Math.max(cellX - reach, Math.min(cellX + reach, x));
+                    cellZ += stepZ * (reach + 1);
+                }
+                sideX = ((invX < 0 ? cellX : cellX + 1) * size - ox) * invX;
+                sideZ = ((invZ < 0 ? cellZ : cellZ + 1) * size - oz) * invZ;
+                continue;
+            }
+
+            if (cell != 0) {
+                double x0 = cellX * size;
+                double z0 = cellZ * size;
+                int post = (cell >> POST_SHIFT) & 3;
+                int barX = (cell >> X_BAR_SHIFT) & 3;
+                int barZ = (cell >> Z_BAR_SHIFT) & 3;
+
+                if (post != 0) hitBox(ox, oz, invX, invZ, x0, z0, x0 + 1, z0 + 1, post, hit);
+                if (barX != 0) hitBox(ox, oz, invX, invZ, x0 + 1, z0, x0 + size, z0 + 1, barX, hit);
+                if (barZ != 0) hitBox(ox, oz, invX, invZ, x0, z0 + 1, x0 + 1, z0 + size, barZ, hit);
+
+                // Everything in a cell lies inside it, so the first cell with a
+                // hit holds the nearest one.
+                if (hit.distance != Double.MAX_VALUE) {
+                    return hit.distance <= maxDist;
+                }
+            }
+
+            if (sideX < sideZ) {
+                if (sideX > maxDist) break;
+                sideX += deltaX;
+                cellX += stepX;
+            } else {
+                if (sideZ > maxDist) break;
+                sideZ += deltaZ;
+                cellZ += stepZ;
+            }
+        }
+        return false;
+    }
+
+    public boolean hasLineOfSight(double x0, double z0, double x1, double z1) {
+        return !castRay(x0, z0, x1 - x0, z1 - z0, 1, sightHit);
+    }
+
+    private static void hitBox(double ox, double oz, double invX, double invZ,
+                               double minX, double minZ, double maxX, double maxZ, int type, RayHit hit) {
+        double t1 = (minX - ox) * invX;
+        double t2 = (maxX - ox) * invX;
+        double t3 = (minZ - oz) * invZ;
+        double t4 = (maxZ - oz) * invZ;
+
+        double nearX = Math.min(t1, t2);
+        double nearZ = Math.min(t3, t4);
+        double tmin = Math.max(nearX, nearZ);
+        double tmax = Math.min(Math.max(t1, t2), Math.max(t3, t4));
+
+        if (tmax >= tmin && tmin > 0 && tmin < hit.distance) {
+            hit.distance = tmin;
+            hit.side = nearX > nearZ ? 0 : 1;
+            hit.type = type;
+        }
+    }
+
     public int getTile(int x, int z) {
         if (x < 0 || z < 0 || x >= width || z >= height) return 0;
         return tiles[x + z * width];
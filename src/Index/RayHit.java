@@ -0,0 +1,8 @@
+package Index;
+
+public class RayHit {
+    public double distance;
+    public int side;
+    public int type;
+    public int steps;
+}
@@ -0,0 +1,160 @@
+package Index;
+
+import java.util.List;
+
+/**
+ * Buckets entities by the map cell that holds their centre. Buckets are
+ * intrusive linked lists, so inserting, removing and moving never allocate.
+ */
+public class SpatialGrid<T extends Entity> {
+    private final int cols;
+    private final int rows;
+    private final double cellSize;
+    private final Entity[] heads;
+    private int stamp;
+
+    public SpatialGrid(int cols, int rows, double cellSize) {
+        this.cols = cols;
+        this.rows = rows;
+        this.cellSize = cellSize;
+        heads = new Entity[cols * rows];
+    }
+
+    public void insert(T e) {
+        link(e, cellOf(e.x, e.z));
+    }
+
+    public void remove(T e) {
+        if (e.cell >= 0) unlink(e);
+    }
+
+    public void move(T e) {
+        int cell = cellOf(e.x, e.z);
+        if (cell != e.cell) {
+            unlink(e);
+            link(e, cell);
+        }
+    }
+
+    /** Adds every entity whose centre lies in a cell touched by the box. */
+    @SuppressWarnings("unchecked")
+    public void queryBox(double minX, double minZ, double maxX, double maxZ, List<T> out) {
+        int x0 = clampX((int) Math.floor(minX / cellSize));
+        int x1 = clampX((int) Math.floor(maxX / cellSize));
+        int z0 = clampZ((int) Math.floor(minZ / cellSize));
+        int z1 = clampZ((int) Math.floor(maxZ / cellSize));
+
+        for (int cz = z0; cz <= z1; cz++) {
+            for (int cx = x0; cx <= x1; cx++) {
+                for (Entity e = heads[cx + cz * cols]; e != null; e = e.nextInCell) {
+                    out.add((T) e);
+                }
+            }
+        }
+    }
+
+    /** Adds every entity whose centre is within radius of (x, z). */
+    @SuppressWarnings("unchecked")
+    public void queryRadius(double x, double z, double radius, List<T> out) {
+        int x0 = clampX((int) Math.floor((x - radius) / cellSize));
+        int x1 = clampX((int) Math.floor((x + radius) / cellSize));
+        int z0 = clampZ((int) Math.floor((z - radius) / cellSize));
+        int z1 = clampZ((int) Math.floor((z + radius) / cellSize));
+        double r2 = radius * radius;
+
+        for (int cz = z0; cz <= z1; cz++) {
+            for (int cx = x0; cx <= x1; cx++) {
+                for (Entity e = heads[cx + cz * cols]; e != null; e = e.nextInCell) {
+                    double dx = e.x - x;
+                    double dz = e.z - z;
+                    if (dx * dx + dz * dz <= r2) out.add((T) e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks the cells along the segment from (ox, oz) to (ox, oz) + dir * maxDist
+     * and adds every entity whose centre is within radius of it, nearest cells first.
+     */
+    @SuppressWarnings("unchecked")
+    public void queryRay(double ox, double oz, double dirX, double dirZ, double maxDist, double radius, List<T> out) {
+        int stampNow = ++stamp;
+        int pad = (int) Math.ceil(radius / cellSize);
+        double lengthSq = dirX * dirX + dirZ * dirZ;
+        double r2 = radius * radius;
+
+        int cellX = (int) Math.floor(ox / cellSize);
+        int cellZ = (int) Math.floor(oz / cellSize);
+        int endX = (int) Math.floor((ox + dirX * maxDist) / cellSize);
+        int endZ = (int) Math.floor((oz + dirZ * maxDist) / cellSize);
+
+        double invX = 1 / dirX;
+        double invZ = 1 / dirZ;
+        double deltaX = Math.abs(cellSize * invX);
+        double deltaZ = Math.abs(cellSize * invZ);
+        double sideX = ((invX < 0 ? cellX : cellX + 1) * cellSize - ox) * invX;
+        double sideZ = ((invZ < 0 ? cellZ : cellZ + 1) * cellSize - oz) * invZ;
+        int stepX = invX < 0 ? -1 : 1;
+        int stepZ = invZ < 0 ? -1 : 1;
+
+        while (true) {
+            for (int cz = clampZ(cellZ - pad); cz <= clampZ(cellZ + pad); cz++) {
+                for (int cx = clampX(cellX - pad); cx <= clampX(cellX + pad); cx++) {
+                    for (Entity e = heads[cx + cz * cols]; e != null; e = e.nextInCell) {
+                        if (e.queryStamp == stampNow) continue;
+                        e.queryStamp = stampNow;
+
+                        double vx = e.x - ox;
+                        double vz = e.z - oz;
+                        double t = lengthSq == 0 ? 0 : Math.max(0, Math.min(maxDist, (vx * dirX + vz * dirZ) / lengthSq));
+                        double dx = vx - dirX * t;
+                        double dz = vz - dirZ * t;
+                        if (dx * dx + dz * dz <= r2) out.add((T) e);
+                    }
+                }
+            }
+
+            if (cellX == endX && cellZ == endZ) break;
+            if (sideX < sideZ) {
+                if (sideX > maxDist) break;
+                sideX += deltaX;
+                cellX += stepX;
+            } else {
+                if (sideZ > maxDist) break;
+                sideZ += deltaZ;
+                cellZ += stepZ;
+            }
+            if (cellX + pad < 0 || cellZ + pad < 0 || cellX - pad >= cols || cellZ - pad >= rows) break;
+        }
+    }
+
+    private int cellOf(double x, double z) {
+        return clampX((int) Math.floor(x / cellSize)) + clampZ((int) Math.floor(z / cellSize)) * cols;
+    }
+
+    private int clampX(int cx) {
+        return Math.max(0, Math.min(cols - 1, cx));
+    }
+
+    private int clampZ(int cz) {
+        return Math.max(0, Math.min(rows - 1, cz));
+    }
+
+    private void link(Entity e, int cell) {
+        e.cell = cell;
+        e.prevInCell = null;
+        e.nextInCell = heads[cell];
+        if (heads[cell] != null) heads[cell].prevInCell = e;
+        heads[cell] = e;
+    }
+
+    private void unlink(Entity e) {
+        if (e.prevInCell != null) e.prevInCell.nextInCell = e.nextInCell;
+        else heads[e.cell] = e.nextInCell;
+        if (e.nextInCell != null) e.nextInCell.prevInCell = e.prevInCell;
+        e.nextInCell = null;
+        e.prevInCell = null;
+        e.cell = -1;
+    }
+}
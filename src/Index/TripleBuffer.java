@@ -0,0 +1,44 @@
+package Index;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Lock-free hand-off between one writer and one reader. The writer fills
+ * back() and publishes it; the reader takes the newest published slot with
+ * latest(). Neither side ever waits, and a slot is never shared between them.
+ */
+public class TripleBuffer<T> {
+    private static final int FRESH = 4;
+
+    private final Object[] slots = new Object[3];
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int back = 2;
+    private int front = 0;
+
+    public TripleBuffer(Supplier<T> factory) {
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = factory.get();
+        }
+    }
+
+    /** The slot the writer may fill. Only call from the writer thread. */
+    @SuppressWarnings("unchecked")
+    public T back() {
+        return (T) slots[back];
+    }
+
+    /** Hands the filled back slot to the reader and takes a free one. */
+    public void publish() {
+        back = middle.getAndSet(back | FRESH) & 3;
+    }
+
+    /** The newest published slot, or the previous one if nothing new arrived. */
+    @SuppressWarnings("unchecked")
+    public T latest() {
+        if ((middle.get() & FRESH) != 0) {
+            front = middle.getAndSet(front) & 3;
+        }
+        return (T) slots[front];
+    }
+}
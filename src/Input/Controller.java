@@ -6,6 +6,8 @@ public class Controller {
 
     public double x, y, z, rotation, xa, za, rotationa;
     public double rotationPitch = 0;
+    /** Position at the start of the current tick, for interpolated rendering. */
+    public double prevX, prevY, prevZ;
 
     public double ya = 0;
     public boolean isJumping = false;
@@ -17,6 +19,12 @@ public class Controller {
     public static boolean turnRight = false;
     public static boolean walk = false;
 
+    public void rememberPosition() {
+        prevX = x;
+        prevY = y;
+        prevZ = z;
+    }
+
     public void tick(boolean forward, boolean back, boolean left, boolean right, boolean jump, boolean crouch, boolean run, Level level) {
         double rotationSpeed = 0.0076;
 
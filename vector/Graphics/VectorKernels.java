@@ -0,0 +1,116 @@
+package Graphics;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * PixelKernels on the incubating Vector API. Kept out of src so the game
+ * builds without the module; compile it onto the same class path with
+ *
+ *   javac --add-modules jdk.incubator.vector -cp bin -d bin vector/Graphics/VectorKernels.java
+ *
+ * and run with --add-modules jdk.incubator.vector to use it. Results are
+ * bit-identical to the scalar loops.
+ */
+public class VectorKernels extends PixelKernels {
+
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final int CHUNK = 1024;
+
+    // SPREAD[f] repeats each of the first length / f lanes f times; null for
+    // factors that do not divide the vector length.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final VectorShuffle<Integer>[] SPREAD = new VectorShuffle[INTS.length() + 1];
+
+    static {
+        for (int f = 2; f <= INTS.length(); f++) {
+            if (INTS.length() % f == 0) {
+                int factor = f;
+                SPREAD[f] = VectorShuffle.fromOp(INTS, lane -> lane / factor);
+            }
+        }
+    }
+
+    // Brightness for one chunk of pixels. The double divide and int convert
+    // stay scalar: C2 already vectorizes that loop, while the Vector API
+    // conversion is not intrinsified on JDK 17 and runs slower than scalar.
+    private static final ThreadLocal<int[]> brightness = ThreadLocal.withInitial(() -> new int[CHUNK]);
+
+    @Override
+    public String name() {
+        return "vector " + INTS.vectorBitSize() + "-bit";
+    }
+
+    @Override
+    public void limit(int[] pixels, double[] depth, int start, int end, double renderDistance) {
+        int[] levels = brightness.get();
+
+        for (int chunk = start; chunk < end; chunk += CHUNK) {
+            int count = Math.min(CHUNK, end - chunk);
+            for (int j = 0; j < count; j++) {
+                int level = (int) (renderDistance / depth[chunk + j]);
+                levels[j] = level < 0 ? 0 : (level > 255 ? 255 : level);
+            }
+
+            int upper = INTS.loopBound(count);
+            int j = 0;
+            for (; j < upper; j += INTS.length()) {
+                IntVector level = IntVector.fromArray(INTS, levels, j);
+                IntVector color = IntVector.fromArray(INTS, pixels, chunk + j);
+                IntVector r = scale(color.lanewise(VectorOperators.ASHR, 16).and(0xff), level);
+                IntVector g = scale(color.lanewise(VectorOperators.ASHR, 8).and(0xff), level);
+                IntVector b = scale(color.and(0xff), level);
+
+                r.lanewise(VectorOperators.LSHL, 16)
+                        .or(g.lanewise(VectorOperators.LSHL, 8))
+                        .or(b)
+                        .intoArray(pixels, chunk + j);
+            }
+            super.limit(pixels, depth, chunk + j, chunk + count, renderDistance);
+        }
+    }
+
+    @Override
+    public void shade(int[] pixels, int from, int to, int brightness) {
+        int upper = from + INTS.loopBound(Math.max(0, to - from));
+        int i = from;
+
+        // Render3D.shade on every lane: red and blue together as two 16-bit
+        // halves, green on its own.
+        for (; i < upper; i += INTS.length()) {
+            IntVector color = IntVector.fromArray(INTS, pixels, i);
+            IntVector rb = color.and(0xFF00FF).mul(brightness);
+            rb = rb.add(0x10001).add(rb.lanewise(VectorOperators.LSHR, 8).and(0xFF00FF))
+                    .lanewise(VectorOperators.LSHR, 8).and(0xFF00FF);
+            IntVector g = color.lanewise(VectorOperators.ASHR, 8).and(0xFF).mul(brightness);
+            g = g.add(1).add(g.lanewise(VectorOperators.ASHR, 8)).lanewise(VectorOperators.ASHR, 8);
+            rb.or(g.lanewise(VectorOperators.LSHL, 8)).intoArray(pixels, i);
+        }
+        super.shade(pixels, i, to, brightness);
+    }
+
+    @Override
+    public void widen(int[] in, int from, int[] out, int to, int count, int factor) {
+        VectorShuffle<Integer> spread = factor < SPREAD.length ? SPREAD[factor] : null;
+        if (spread == null) {
+            super.widen(in, from, out, to, count, factor);
+            return;
+        }
+        // Each load reads a whole vector but spreads only its first
+        // length / factor pixels, so stop while the load stays in range.
+        int used = INTS.length() / factor;
+        int i = 0;
+        for (; i + INTS.length() <= count; i += used) {
+            IntVector.fromArray(INTS, in, from + i).rearrange(spread).intoArray(out, to + i * factor);
+        }
+        super.widen(in, from + i, out, to + i * factor, count - i, factor);
+    }
+
+    /** channel * brightness / 255 without a divide; exact for products up to 65534. */
+    private static IntVector scale(IntVector channel, IntVector brightness) {
+        IntVector product = channel.mul(brightness);
+        return product.add(1).add(product.lanewise(VectorOperators.LSHR, 8)).lanewise(VectorOperators.LSHR, 8);
+    }
+}